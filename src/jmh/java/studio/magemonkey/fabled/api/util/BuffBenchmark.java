@@ -0,0 +1,173 @@
+/**
+ * Fabled
+ * studio.magemonkey.fabled.api.util.BuffBenchmark
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Copyright (c) 2024 MageMonkeyStudio
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software") to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package studio.magemonkey.fabled.api.util;
+
+import org.bukkit.entity.LivingEntity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Microbenchmarks of the buff hot paths. Entities are {@link SimulatedEntity} stubs and
+ * expiry is driven through manual ticking instead of the server scheduler, so this runs
+ * on a plain JVM. Every invocation works on the next entity of the population, so the
+ * results include the cache misses of a realistic number of entities.
+ * <p>
+ * Run with {@code -prof gc} to see the allocation rate of each operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BuffBenchmark {
+    private static final int LONG_TICKS = 1_000_000;
+
+    private static final BuffKey DAMAGE   = BuffKey.of("BENCH_damage");
+    private static final BuffKey FIRE     = BuffKey.of("BENCH_damage", "fire");
+    private static final BuffKey EXPIRING = BuffKey.of("BENCH_expiring");
+
+    private static final Buff OVERWRITE = new Buff("b0", 1.1, true);
+    private static final Buff SHORT     = new Buff("short", 1.1, true);
+
+    @Param({"100", "1000", "10000", "100000"})
+    private int entities;
+
+    @Param({"1", "4", "16"})
+    private int buffsPerEntity;
+
+    @Param({"0", "50", "100"})
+    private int percentShare;
+
+    private final BuffManager    manager = BuffManager.getInstance();
+    private       LivingEntity[] proxies;
+    private       Buff[][]       buffs;
+    private       boolean        manual;
+    private       int            next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BuffSimulator.checkHeadless();
+        manual = manager.isManualTicking();
+        manager.setManualTicking(true);
+
+        final Random random = new Random(1);
+        proxies = new LivingEntity[entities];
+        buffs = new Buff[entities][buffsPerEntity];
+        for (int i = 0; i < entities; i++) {
+            proxies[i] = SimulatedEntity.create(new UUID(random.nextLong(), random.nextLong()));
+            for (int b = 0; b < buffsPerEntity; b++) {
+                final boolean percent = random.nextInt(100) < percentShare;
+                buffs[i][b] = new Buff("b" + b, percent ? 0.8 + random.nextDouble() * 0.6 : random.nextDouble() * 5, percent);
+            }
+            populate(i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        for (final LivingEntity proxy : proxies) {
+            BuffManager.clearData(proxy);
+        }
+        manager.setManualTicking(manual);
+    }
+
+    /**
+     * Gives the entity its buffs, alternating between the plain type and its category
+     */
+    private void populate(final int index) {
+        final BuffData data = BuffManager.getBuffData(proxies[index]);
+        for (int b = 0; b < buffsPerEntity; b++) {
+            data.addBuff(b % 2 == 0 ? DAMAGE : FIRE, buffs[index][b], LONG_TICKS);
+        }
+    }
+
+    private int nextIndex() {
+        final int index = next;
+        next = index + 1 == entities ? 0 : index + 1;
+        return index;
+    }
+
+    @Benchmark
+    public double scaleValue() {
+        return manager.scaleValue(FIRE, proxies[nextIndex()], 10);
+    }
+
+    @Benchmark
+    public double scaleValueByName() {
+        return manager.scaleValue("BENCH_damage_fire", proxies[nextIndex()], 10);
+    }
+
+    @Benchmark
+    public double apply() {
+        return BuffManager.getBuffData(proxies[nextIndex()]).apply(DAMAGE, 10, null);
+    }
+
+    @Benchmark
+    public double applyCategory() {
+        return BuffManager.getBuffData(proxies[nextIndex()]).apply(FIRE, 10, null);
+    }
+
+    @Benchmark
+    public void addBuffOverwrite() {
+        BuffManager.getBuffData(proxies[nextIndex()]).addBuff(DAMAGE, OVERWRITE, LONG_TICKS);
+    }
+
+    /**
+     * Clears a type and adds its buffs back, so every invocation sees the same population
+     */
+    @Benchmark
+    public void clearByType() {
+        final int index = nextIndex();
+        BuffManager.getBuffData(proxies[index]).clearByType(FIRE);
+        populate(index);
+    }
+
+    /**
+     * Adds a buff lasting a single tick and ticks once, which expires it again
+     */
+    @Benchmark
+    public void expire() {
+        BuffManager.getBuffData(proxies[nextIndex()]).addBuff(EXPIRING, SHORT, 1);
+        manager.tick();
+    }
+}
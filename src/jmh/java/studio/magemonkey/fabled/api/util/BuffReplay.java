@@ -0,0 +1,362 @@
+/**
+ * Fabled
+ * studio.magemonkey.fabled.api.util.BuffReplay
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Copyright (c) 2024 MageMonkeyStudio
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software") to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package studio.magemonkey.fabled.api.util;
+
+import org.bukkit.entity.LivingEntity;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Replays a trace recorded through {@link BuffManager#startRecording(File)}, so the buff
+ * workload of a live server becomes a repeatable benchmark. Like {@link BuffSimulator}
+ * it drives {@link BuffManager} with manual ticking and {@link SimulatedEntity} stubs,
+ * running on a plain JVM with only the Bukkit API on the classpath.
+ * <p>
+ * The trace is loaded completely before replaying, so reading it isn't measured. Every
+ * recorded tick runs its operations followed by a manual tick, which expires buffs the
+ * same way the recorded server did. Recorded expiries are therefore only counted.
+ * Buffs recorded with a condition that was only given in compiled form are replayed
+ * without it, as the trace has no text to compile it from.
+ * <p>
+ * It refuses to run inside a server and only ever clears the buffs of the traced entities.
+ * Run {@link #main(String[])} with the trace file and optionally {@code --max-p99-ms=<ms>}
+ * to use it as a performance gate, it exits with status 1 when the 99th percentile tick
+ * time is exceeded.
+ */
+public final class BuffReplay {
+    private static final int    OPS          = BuffRecorder.OP_CONDITION + 1;
+    private static final int    HEAP_SAMPLES = 100;
+    private static final double NANOS_PER_US = 1_000.0;
+    private static final double NANOS_PER_MS = 1_000_000.0;
+
+    private final File               file;
+    private final List<LivingEntity> entities = new ArrayList<>();
+
+    /**
+     * @param file recorded trace
+     */
+    public BuffReplay(final File file) {
+        this.file = file;
+    }
+
+    /**
+     * Replays the trace and clears the buffs of the traced entities afterwards
+     *
+     * @return the measured tick and operation times
+     * @throws IOException           if the trace couldn't be read
+     * @throws IllegalStateException if called inside a running server
+     */
+    public Result run() throws IOException {
+        BuffSimulator.checkHeadless();
+        final List<Op> ops = load();
+        if (ops.isEmpty()) return new Result(new long[0], 0, 0, new int[OPS], new long[OPS]);
+
+        final BuffManager manager = BuffManager.getInstance();
+        final boolean     manual  = manager.isManualTicking();
+        manager.setManualTicking(true);
+
+        final long   first    = ops.get(0).tick;
+        final long[] times    = new long[(int) (ops.get(ops.size() - 1).tick - first + 1)];
+        final int[]  counts   = new int[OPS];
+        final long[] nanos    = new long[OPS];
+        long         heapPeak = 0;
+        int          next     = 0;
+        try {
+            for (int tick = 0; tick < times.length; tick++) {
+                final long start = System.nanoTime();
+                while (next < ops.size() && ops.get(next).tick <= first + tick) {
+                    final Op   op     = ops.get(next++);
+                    final long opTime = System.nanoTime();
+                    replay(manager, op);
+                    counts[op.op]++;
+                    nanos[op.op] += System.nanoTime() - opTime;
+                }
+                manager.tick();
+                times[tick] = System.nanoTime() - start;
+                if (tick % HEAP_SAMPLES == 0) heapPeak = Math.max(heapPeak, usedHeap());
+            }
+            return new Result(times, heapPeak, manager.getTrackedEntities(), counts, nanos);
+        } finally {
+            for (final LivingEntity entity : entities) {
+                BuffManager.clearData(entity);
+            }
+            manager.setManualTicking(manual);
+        }
+    }
+
+    private static void replay(final BuffManager manager, final Op op) {
+        switch (op.op) {
+            case BuffRecorder.OP_ADD:
+            case BuffRecorder.OP_OVERWRITE:
+                BuffManager.getBuffData(op.entity).addBuff((BuffKey) op.target, op.buff, op.count);
+                break;
+            case BuffRecorder.OP_CLEAR_TYPE:
+                final BuffData data = BuffManager.getBuffData(op.entity, false);
+                if (data != null) data.clearByType((BuffKey) op.target);
+                break;
+            case BuffRecorder.OP_CLEAR:
+                BuffManager.clearData(op.entity);
+                break;
+            case BuffRecorder.OP_SCALE_KEY:
+                manager.scaleValue((BuffKey) op.target, op.entity, op.value);
+                break;
+            case BuffRecorder.OP_SCALE_NAME:
+                manager.scaleValue((String) op.target, op.entity, op.value);
+                break;
+            case BuffRecorder.OP_REFRESH:
+            case BuffRecorder.OP_EXTEND:
+                final BuffData active = BuffManager.getBuffData(op.entity, false);
+                if (active == null) break;
+                if (op.op == BuffRecorder.OP_EXTEND) {
+                    active.extend((BuffKey) op.target, op.key, op.count);
+                } else {
+                    active.refresh((BuffKey) op.target, op.key, op.count);
+                }
+                break;
+            case BuffRecorder.OP_STACK:
+                BuffManager.getBuffData(op.entity).addStack((BuffKey) op.target, op.buff, op.count, op.limit);
+                break;
+            case BuffRecorder.OP_DECAY:
+                BuffManager.getBuffData(op.entity).addDecayingBuff((BuffKey) op.target, op.buff, op.value, op.count,
+                        BuffCurve.valueOf(op.key));
+                break;
+            case BuffRecorder.OP_CONDITION:
+                if (op.key.isEmpty()) {
+                    BuffManager.getBuffData(op.entity).addBuff((BuffKey) op.target, op.buff, op.count);
+                } else {
+                    BuffManager.getBuffData(op.entity).addBuff((BuffKey) op.target, op.buff, op.count, op.key);
+                }
+                break;
+            case BuffRecorder.OP_REMOVE:
+                final BuffData holder = BuffManager.getBuffData(op.entity, false);
+                if (holder != null) holder.removeBuff(op.key);
+                break;
+            default:
+                // Expiries happen on their own during the manual ticks
+                break;
+        }
+    }
+
+    private List<Op> load() throws IOException {
+        final List<Op> ops = new ArrayList<>();
+        entities.clear();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final MappedByteBuffer buffer  = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            final List<String>     strings = new ArrayList<>();
+            if (buffer.getInt() != BuffRecorder.MAGIC || buffer.get() != BuffRecorder.VERSION) {
+                throw new IOException(file.getName() + " isn't a buff trace");
+            }
+
+            long tick = 0;
+            try {
+                while (buffer.hasRemaining()) {
+                    final byte op = buffer.get();
+                    switch (op) {
+                        case BuffRecorder.OP_TICK:
+                            tick = buffer.getLong();
+                            break;
+                        case BuffRecorder.OP_STRING:
+                            final byte[] bytes = new byte[BuffPersistence.readVarInt(buffer)];
+                            buffer.get(bytes);
+                            strings.add(new String(bytes, StandardCharsets.UTF_8));
+                            break;
+                        case BuffRecorder.OP_ENTITY:
+                            final UUID id = new UUID(buffer.getLong(), buffer.getLong());
+                            entities.add(SimulatedEntity.create(id));
+                            break;
+                        default:
+                            ops.add(read(op, tick, buffer, strings, entities));
+                            break;
+                    }
+                }
+            } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+                // A trace that wasn't closed ends with a partial record, everything before it is intact
+            }
+        }
+        return ops;
+    }
+
+    private static Op read(final byte op,
+                           final long tick,
+                           final MappedByteBuffer buffer,
+                           final List<String> strings,
+                           final List<LivingEntity> entities) throws IOException {
+        final Op result = new Op(op, tick, entities.get(BuffPersistence.readVarInt(buffer)));
+        switch (op) {
+            case BuffRecorder.OP_ADD:
+            case BuffRecorder.OP_OVERWRITE:
+            case BuffRecorder.OP_STACK:
+            case BuffRecorder.OP_DECAY:
+            case BuffRecorder.OP_CONDITION:
+                result.target = BuffKey.restore(strings.get(BuffPersistence.readVarInt(buffer)));
+                final String key = strings.get(BuffPersistence.readVarInt(buffer));
+                final double value = buffer.getDouble();
+                result.buff = new Buff(key, value, buffer.get() != 0);
+                result.count = BuffPersistence.readVarInt(buffer);
+                if (op == BuffRecorder.OP_STACK) result.limit = BuffPersistence.readVarInt(buffer);
+                // The end value of a decaying buff and the curve or condition
+                if (op == BuffRecorder.OP_DECAY) result.value = buffer.getDouble();
+                if (op == BuffRecorder.OP_DECAY || op == BuffRecorder.OP_CONDITION) {
+                    result.key = strings.get(BuffPersistence.readVarInt(buffer));
+                }
+                break;
+            case BuffRecorder.OP_REMOVE:
+                result.key = strings.get(BuffPersistence.readVarInt(buffer));
+                break;
+            case BuffRecorder.OP_REFRESH:
+            case BuffRecorder.OP_EXTEND:
+                result.target = BuffKey.restore(strings.get(BuffPersistence.readVarInt(buffer)));
+                result.key = strings.get(BuffPersistence.readVarInt(buffer));
+                result.count = BuffPersistence.readVarInt(buffer);
+                break;
+            case BuffRecorder.OP_CLEAR_TYPE:
+                result.target = BuffKey.restore(strings.get(BuffPersistence.readVarInt(buffer)));
+                break;
+            case BuffRecorder.OP_CLEAR:
+                break;
+            case BuffRecorder.OP_EXPIRE:
+                result.count = BuffPersistence.readVarInt(buffer);
+                break;
+            case BuffRecorder.OP_SCALE_KEY:
+                result.target = BuffKey.restore(strings.get(BuffPersistence.readVarInt(buffer)));
+                result.value = buffer.getDouble();
+                break;
+            case BuffRecorder.OP_SCALE_NAME:
+                result.target = strings.get(BuffPersistence.readVarInt(buffer));
+                result.value = buffer.getDouble();
+                break;
+            default:
+                throw new IOException("Unknown record " + op);
+        }
+        return result;
+    }
+
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Replays a trace from the command line. Arguments are the trace file, optionally
+     * followed by {@code --max-p99-ms=<ms>}.
+     *
+     * @param args command line arguments
+     * @throws IOException if the trace couldn't be read
+     */
+    public static void main(final String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("Usage: BuffReplay <trace file> [--max-p99-ms=<ms>]");
+            System.exit(2);
+        }
+
+        double maxP99 = Double.MAX_VALUE;
+        for (final String arg : args) {
+            if (arg.startsWith("--max-p99-ms=")) maxP99 = Double.parseDouble(arg.substring("--max-p99-ms=".length()));
+        }
+
+        final Result result = new BuffReplay(new File(args[0])).run();
+        System.out.println(result);
+        if (result.getTicks().getPercentile(0.99) / NANOS_PER_MS > maxP99) {
+            System.out.println("99th percentile tick time exceeds " + maxP99 + " ms");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Measured tick times of a replay along with the time spent per kind of operation
+     */
+    public static final class Result {
+        private static final String[] NAMES = {
+                null, null, null, "add", "overwrite", "clear type", "clear", "expire", "scale key", "scale name",
+                "refresh", "extend", "stack", "remove", "decay", "condition"
+        };
+
+        private final BuffSimulator.Result ticks;
+        private final int[]                counts;
+        private final long[]               nanos;
+
+        Result(final long[] times,
+               final long heapPeak,
+               final int buffedEntities,
+               final int[] counts,
+               final long[] nanos) {
+            this.ticks = new BuffSimulator.Result(times, heapPeak, buffedEntities);
+            this.counts = counts;
+            this.nanos = nanos;
+        }
+
+        /**
+         * @return the measured tick times and heap usage
+         */
+        public BuffSimulator.Result getTicks() {
+            return ticks;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder builder = new StringBuilder(ticks.toString());
+            for (int op = 0; op < counts.length; op++) {
+                if (counts[op] == 0) continue;
+                builder.append(String.format("%n%s: %d ops", NAMES[op], counts[op]));
+                if (op != BuffRecorder.OP_EXPIRE) {
+                    builder.append(String.format(", avg %.3f us", nanos[op] / NANOS_PER_US / counts[op]));
+                }
+            }
+            return builder.toString();
+        }
+    }
+
+    /**
+     * A recorded operation
+     */
+    private static final class Op {
+        private final byte         op;
+        private final long         tick;
+        private final LivingEntity entity;
+        private       Object       target;
+        private       String       key;
+        private       Buff         buff;
+        private       double       value;
+        private       int          count;
+        private       int          limit;
+
+        private Op(final byte op, final long tick, final LivingEntity entity) {
+            this.op = op;
+            this.tick = tick;
+            this.entity = entity;
+        }
+    }
+}
@@ -0,0 +1,320 @@
+/**
+ * Fabled
+ * studio.magemonkey.fabled.api.util.BuffSimulator
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Copyright (c) 2024 MageMonkeyStudio
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software") to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package studio.magemonkey.fabled.api.util;
+
+import org.bukkit.Bukkit;
+import org.bukkit.entity.LivingEntity;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Headless load simulation of the buff subsystem. It drives {@link BuffManager} with
+ * manual ticking and {@link SimulatedEntity} stubs, so it runs on a plain JVM with only
+ * the Bukkit API on the classpath. Every simulated tick applies, overwrites and expires buffs, kills
+ * and respawns entities and scales damage events, following Poisson distributed rates.
+ * <p>
+ * It refuses to run inside a server and only ever clears the buffs of its own entities.
+ * Run {@link #main(String[])} with {@code --max-p99-ms=<ms>} to use it as a performance gate,
+ * it exits with status 1 when the 99th percentile tick time is exceeded.
+ */
+public final class BuffSimulator {
+    private static final int    BUFF_KEYS    = 8;
+    private static final String TYPE_PREFIX  = "SIM_";
+
+    // Interned once per JVM and shared by every run
+    private static final BuffKey[] TYPES = {
+            BuffKey.of(TYPE_PREFIX + "damage"),
+            BuffKey.of(TYPE_PREFIX + "defense"),
+            BuffKey.of(TYPE_PREFIX + "skill_damage", "fire"),
+            BuffKey.of(TYPE_PREFIX + "skill_damage", "fire.aoe"),
+            BuffKey.of(TYPE_PREFIX + "skill_defense", "ice"),
+    };
+    private static final int    HEAP_SAMPLES = 100;
+    private static final double NANOS_PER_MS = 1_000_000.0;
+
+    private final int    entities;
+    private final int    ticks;
+    private final Random random;
+
+    private int    warmup       = 200;
+    private double applyRate    = 0.5;
+    private double deathRate    = 0.001;
+    private double damageEvents = 2000;
+    private int    minDuration  = 20;
+    private int    maxDuration  = 600;
+
+    private SimulatedEntity[] population;
+    private LivingEntity[]    proxies;
+
+    /**
+     * @param entities number of simulated entities
+     * @param ticks    number of ticks to simulate, excluding the warmup
+     * @param seed     seed of the workload, the same seed replays the same workload
+     */
+    public BuffSimulator(final int entities, final int ticks, final long seed) {
+        this.entities = entities;
+        this.ticks = ticks;
+        this.random = new Random(seed);
+    }
+
+    /**
+     * @param warmup ticks to simulate before measuring
+     * @return this simulator
+     */
+    public BuffSimulator setWarmup(final int warmup) {
+        this.warmup = warmup;
+        return this;
+    }
+
+    /**
+     * @param applyRate average buffs applied per entity per second
+     * @return this simulator
+     */
+    public BuffSimulator setApplyRate(final double applyRate) {
+        this.applyRate = applyRate;
+        return this;
+    }
+
+    /**
+     * @param deathRate average deaths per entity per second
+     * @return this simulator
+     */
+    public BuffSimulator setDeathRate(final double deathRate) {
+        this.deathRate = deathRate;
+        return this;
+    }
+
+    /**
+     * @param damageEvents average damage events per tick, each scaling a value
+     * @return this simulator
+     */
+    public BuffSimulator setDamageEvents(final double damageEvents) {
+        this.damageEvents = damageEvents;
+        return this;
+    }
+
+    /**
+     * @param minDuration shortest buff duration in ticks
+     * @param maxDuration longest buff duration in ticks
+     * @return this simulator
+     */
+    public BuffSimulator setDurations(final int minDuration, final int maxDuration) {
+        this.minDuration = minDuration;
+        this.maxDuration = maxDuration;
+        return this;
+    }
+
+    /**
+     * Runs the simulation and clears the buffs of the simulated entities afterwards
+     *
+     * @return the measured tick times and heap usage
+     * @throws IllegalStateException if called inside a running server
+     */
+    public Result run() {
+        checkHeadless();
+        final BuffManager manager = BuffManager.getInstance();
+        final boolean     manual  = manager.isManualTicking();
+        manager.setManualTicking(true);
+        setup();
+
+        final long[] times    = new long[ticks];
+        long         heapPeak = 0;
+        try {
+            for (int tick = -warmup; tick < ticks; tick++) {
+                final long start = System.nanoTime();
+                simulateTick(manager);
+                final long time = System.nanoTime() - start;
+
+                if (tick < 0) continue;
+                times[tick] = time;
+                if (tick % HEAP_SAMPLES == 0) heapPeak = Math.max(heapPeak, usedHeap());
+            }
+            return new Result(times, heapPeak, manager.getTrackedEntities());
+        } finally {
+            for (final LivingEntity proxy : proxies) {
+                BuffManager.clearData(proxy);
+            }
+            manager.setManualTicking(manual);
+        }
+    }
+
+    /**
+     * The harnesses drive the shared {@link BuffManager}, which would wreck the buffs
+     * and expiry of a live server
+     *
+     * @throws IllegalStateException if called inside a running server
+     */
+    static void checkHeadless() {
+        if (Bukkit.getServer() != null) {
+            throw new IllegalStateException("Buff harnesses must not be run inside a server");
+        }
+    }
+
+    private void setup() {
+        population = new SimulatedEntity[entities];
+        proxies = new LivingEntity[entities];
+        for (int i = 0; i < entities; i++) {
+            spawn(i);
+        }
+    }
+
+    private void simulateTick(final BuffManager manager) {
+        // Rates are per second, a tick is a twentieth of that
+        final int applies = poisson(entities * applyRate / 20);
+        for (int i = 0; i < applies; i++) {
+            final LivingEntity entity   = proxies[random.nextInt(entities)];
+            final boolean      percent  = random.nextBoolean();
+            final double       value    = percent ? 0.8 + random.nextDouble() * 0.6 : random.nextDouble() * 5;
+            final int          duration = minDuration + random.nextInt(maxDuration - minDuration + 1);
+            final Buff         buff     = new Buff("sim" + random.nextInt(BUFF_KEYS), value, percent);
+            BuffManager.getBuffData(entity).addBuff(TYPES[random.nextInt(TYPES.length)], buff, duration);
+        }
+
+        final int deaths = poisson(entities * deathRate / 20);
+        for (int i = 0; i < deaths; i++) {
+            final int index = random.nextInt(entities);
+            population[index].kill();
+            BuffManager.clearData(proxies[index]);
+            spawn(index);
+        }
+
+        final int damage = poisson(damageEvents);
+        for (int i = 0; i < damage; i++) {
+            manager.scaleValue(TYPES[random.nextInt(TYPES.length)], proxies[random.nextInt(entities)], 10);
+        }
+
+        manager.tick();
+    }
+
+    private void spawn(final int index) {
+        final SimulatedEntity entity = new SimulatedEntity(new UUID(random.nextLong(), random.nextLong()));
+        population[index] = entity;
+        proxies[index] = entity.getProxy();
+    }
+
+    /**
+     * Samples a Poisson distribution, approximated by a normal distribution for large means
+     */
+    private int poisson(final double mean) {
+        if (mean <= 0) return 0;
+        if (mean > 30) {
+            return (int) Math.max(0, Math.round(mean + Math.sqrt(mean) * random.nextGaussian()));
+        }
+
+        final double limit = Math.exp(-mean);
+        int          count = 0;
+        double       p     = random.nextDouble();
+        while (p > limit) {
+            count++;
+            p *= random.nextDouble();
+        }
+        return count;
+    }
+
+    private static long usedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Runs the simulation from the command line. Arguments are the number of entities,
+     * the number of ticks and the seed, optionally followed by {@code --max-p99-ms=<ms>}.
+     *
+     * @param args command line arguments
+     */
+    public static void main(final String[] args) {
+        final int  entities = args.length > 0 ? Integer.parseInt(args[0]) : 30_000;
+        final int  ticks    = args.length > 1 ? Integer.parseInt(args[1]) : 6_000;
+        final long seed     = args.length > 2 ? Long.parseLong(args[2]) : 1;
+        double     maxP99   = Double.MAX_VALUE;
+        for (final String arg : args) {
+            if (arg.startsWith("--max-p99-ms=")) maxP99 = Double.parseDouble(arg.substring("--max-p99-ms=".length()));
+        }
+
+        final Result result = new BuffSimulator(entities, ticks, seed).run();
+        System.out.println(result);
+        if (result.getPercentile(0.99) / NANOS_PER_MS > maxP99) {
+            System.out.println("99th percentile tick time exceeds " + maxP99 + " ms");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Measured tick times and heap usage of a simulation
+     */
+    public static final class Result {
+        private final long[] times;
+        private final long   heapPeak;
+        private final int    buffedEntities;
+
+        Result(final long[] times, final long heapPeak, final int buffedEntities) {
+            this.times = times.clone();
+            this.heapPeak = heapPeak;
+            this.buffedEntities = buffedEntities;
+            Arrays.sort(this.times);
+        }
+
+        /**
+         * @param percentile percentile between 0 and 1
+         * @return the tick time at the percentile in nanoseconds
+         */
+        public long getPercentile(final double percentile) {
+            if (times.length == 0) return 0;
+            return times[Math.min(times.length - 1, (int) (percentile * times.length))];
+        }
+
+        /**
+         * @return the highest sampled heap usage in bytes
+         */
+        public long getHeapPeak() {
+            return heapPeak;
+        }
+
+        /**
+         * @return the number of entities holding buffs at the end of the simulation
+         */
+        public int getBuffedEntities() {
+            return buffedEntities;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("ticks: %d, p50: %.3f ms, p90: %.3f ms, p99: %.3f ms, p99.9: %.3f ms, max: %.3f ms, "
+                            + "heap peak: %d MB, buffed entities: %d",
+                    times.length,
+                    getPercentile(0.5) / NANOS_PER_MS,
+                    getPercentile(0.9) / NANOS_PER_MS,
+                    getPercentile(0.99) / NANOS_PER_MS,
+                    getPercentile(0.999) / NANOS_PER_MS,
+                    getPercentile(1) / NANOS_PER_MS,
+                    heapPeak >> 20,
+                    buffedEntities);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * Fabled
+ * studio.magemonkey.fabled.api.event.BuffsExpiredEvent
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Copyright (c) 2024 MageMonkeyStudio
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software") to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package studio.magemonkey.fabled.api.event;
+
+import org.bukkit.entity.LivingEntity;
+import org.bukkit.event.Event;
+import org.bukkit.event.HandlerList;
+import studio.magemonkey.fabled.api.util.Buff;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Event called once per tick with every buff that expired during the tick.
+ * It is only called instead of {@link BuffExpiredEvent} when batched expiry
+ * events are enabled through the buff manager.
+ */
+public class BuffsExpiredEvent extends Event {
+    private static final HandlerList handlers = new HandlerList();
+
+    private final Map<LivingEntity, Map<String, List<Buff>>> expired;
+    private final int                                         count;
+
+    /**
+     * @param expired expired buffs grouped by entity and buff type
+     * @param count   total number of expired buffs
+     */
+    public BuffsExpiredEvent(final Map<LivingEntity, Map<String, List<Buff>>> expired, final int count) {
+        this.expired = expired;
+        this.count = count;
+    }
+
+    /**
+     * @return expired buffs grouped by entity and then by buff type
+     */
+    public Map<LivingEntity, Map<String, List<Buff>>> getExpired() {
+        return expired;
+    }
+
+    /**
+     * @return total number of buffs that expired
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return gets the handlers for the event
+     */
+    @Override
+    public HandlerList getHandlers() {
+        return handlers;
+    }
+
+    /**
+     * @return gets the handlers for the event
+     */
+    public static HandlerList getHandlerList() {
+        return handlers;
+    }
+}
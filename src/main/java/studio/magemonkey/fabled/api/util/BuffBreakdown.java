@@ -0,0 +1,192 @@
+/**
+ * Fabled
+ * studio.magemonkey.fabled.api.util.BuffBreakdown
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Copyright (c) 2024 MageMonkeyStudio
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software") to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package studio.magemonkey.fabled.api.util;
+
+import lombok.Getter;
+
+import java.util.Arrays;
+
+/**
+ * Multiplier, flat bonus and result of applying the buffs of a key, optionally along with
+ * the buffs that contributed to them, e.g. for a damage log. A breakdown is filled in a
+ * single pass over the buffs through {@link BuffData#breakdown(BuffKey, double, org.bukkit.entity.Player,
+ * BuffBreakdown)} and can be reused for every hit, so filling it doesn't allocate once its
+ * contributor arrays have grown to the number of buffs involved.
+ * <p>
+ * Breakdowns aren't thread safe, each thread should use its own.
+ */
+public final class BuffBreakdown {
+    private static final int INITIAL_CAPACITY = 8;
+
+    /**
+     * Whether the buffs contributing to the result are collected
+     */
+    @Getter
+    private final boolean collectContributors;
+
+    /**
+     * Key the buffs were applied for
+     */
+    @Getter
+    private BuffKey key;
+    /**
+     * Value before applying buffs
+     */
+    @Getter
+    private double  value;
+    /**
+     * Combined multiplier of all applied buffs, never negative
+     */
+    @Getter
+    private double  multiplier;
+    /**
+     * Combined flat bonus of all applied buffs
+     */
+    @Getter
+    private double  bonus;
+    /**
+     * Value after applying buffs, clamped to 0 like {@link BuffData#apply(BuffKey, double, org.bukkit.entity.Player)}.
+     * Values of 0 or less are returned unchanged.
+     */
+    @Getter
+    private double  result;
+
+    private BuffKey[] types;
+    private Buff[]    buffs;
+    private double[]  values;
+    private int       size;
+
+    /**
+     * Creates a breakdown that only holds the totals
+     */
+    public BuffBreakdown() {
+        this(false);
+    }
+
+    /**
+     * @param collectContributors whether to collect the buffs contributing to the result
+     */
+    public BuffBreakdown(final boolean collectContributors) {
+        this.collectContributors = collectContributors;
+        if (collectContributors) {
+            types = new BuffKey[INITIAL_CAPACITY];
+            buffs = new Buff[INITIAL_CAPACITY];
+            values = new double[INITIAL_CAPACITY];
+        }
+    }
+
+    /**
+     * @return the number of buffs that contributed to the result, 0 if contributors aren't collected
+     */
+    public int getContributorCount() {
+        return size;
+    }
+
+    /**
+     * @param index index of the contributor
+     * @return the type the contributing buff is stored under, which is the key or a category it is nested in
+     */
+    public BuffKey getContributorType(final int index) {
+        checkIndex(index);
+        return types[index];
+    }
+
+    /**
+     * @param index index of the contributor
+     * @return the contributing buff
+     */
+    public Buff getContributor(final int index) {
+        checkIndex(index);
+        return buffs[index];
+    }
+
+    /**
+     * @param index index of the contributor
+     * @return the value the buff contributed, including its stacks and its current decay
+     */
+    public double getContributorValue(final int index) {
+        checkIndex(index);
+        return values[index];
+    }
+
+    private void checkIndex(final int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Contributor " + index + " of " + size);
+        }
+    }
+
+    /**
+     * Starts filling the breakdown for a key, dropping the previous contributors
+     *
+     * @param key   key the buffs are applied for
+     * @param value value before applying buffs
+     */
+    void reset(final BuffKey key, final double value) {
+        this.key = key;
+        this.value = value;
+        this.multiplier = 1;
+        this.bonus = 0;
+        this.result = value;
+        if (size > 0) {
+            // Let go of the buffs so reused breakdowns don't keep expired buffs alive
+            Arrays.fill(buffs, 0, size, null);
+            Arrays.fill(types, 0, size, null);
+            size = 0;
+        }
+    }
+
+    void contribute(final BuffKey type, final Buff buff, final double contributed) {
+        if (size == buffs.length) {
+            types = Arrays.copyOf(types, size * 2);
+            buffs = Arrays.copyOf(buffs, size * 2);
+            values = Arrays.copyOf(values, size * 2);
+        }
+        types[size] = type;
+        buffs[size] = buff;
+        values[size] = contributed;
+        size++;
+    }
+
+    void complete(final double multiplier, final double bonus) {
+        // Negatives aren't well received by bukkit, so return 0 instead
+        this.multiplier = Math.max(0, multiplier);
+        this.bonus = bonus;
+        if (value > 0) this.result = multiplier <= 0 ? 0 : Math.max(0, value * multiplier + bonus);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder("BuffBreakdown{")
+                .append(key).append(": x").append(multiplier).append(", +").append(bonus)
+                .append(", ").append(value).append(" -> ").append(result);
+        for (int i = 0; i < size; i++) {
+            builder.append(i == 0 ? ", contributors: " : ", ")
+                    .append(types[i]).append('/').append(buffs[i].getKey()).append('=').append(values[i]);
+        }
+        return builder.append('}').toString();
+    }
+}
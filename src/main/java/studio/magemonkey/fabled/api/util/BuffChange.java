@@ -0,0 +1,150 @@
+/**
+ * Fabled
+ * studio.magemonkey.fabled.api.util.BuffChange
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Copyright (c) 2024 MageMonkeyStudio
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software") to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package studio.magemonkey.fabled.api.util;
+
+import lombok.Getter;
+import org.bukkit.entity.LivingEntity;
+
+import java.util.UUID;
+
+/**
+ * The changes to the buffs of one type on one entity during a tick. All changes of a
+ * tick are coalesced into a single delta, carrying the totals of the type before the
+ * first and after the last change, as returned by {@link BuffData#getMultiplier(BuffKey)}
+ * and {@link BuffData#getFlatBonus(BuffKey)}.
+ */
+public final class BuffChange {
+    /**
+     * UUID of the entity whose buffs changed
+     */
+    @Getter
+    private final UUID    entityId;
+    /**
+     * Type of the buffs that changed
+     */
+    @Getter
+    private final BuffKey type;
+    /**
+     * Total multiplier of the type before the changes
+     */
+    @Getter
+    private final double  oldMultiplier;
+    /**
+     * Total flat bonus of the type before the changes
+     */
+    @Getter
+    private final double  oldBonus;
+
+    @Getter
+    private int          added;
+    @Getter
+    private int          overwritten;
+    @Getter
+    private int          stacked;
+    @Getter
+    private int          expired;
+    @Getter
+    private int          removed;
+    @Getter
+    private double       newMultiplier;
+    @Getter
+    private double       newBonus;
+    /**
+     * Whether buffs of exactly the type remain after the changes
+     */
+    @Getter
+    private boolean      active;
+    private LivingEntity entity;
+
+    BuffChange(final UUID entityId, final BuffKey type, final BuffSnapshot before) {
+        this.entityId = entityId;
+        this.type = type;
+        this.oldMultiplier = before.getMultiplier(type);
+        this.oldBonus = before.getFlatBonus(type);
+    }
+
+    /**
+     * The kind of a single change
+     */
+    enum Kind {
+        ADDED,
+        OVERWRITTEN,
+        STACKED,
+        EXPIRED,
+        REMOVED
+    }
+
+    void record(final Kind kind, final int count) {
+        switch (kind) {
+            case ADDED:
+                added += count;
+                break;
+            case OVERWRITTEN:
+                overwritten += count;
+                break;
+            case STACKED:
+                stacked += count;
+                break;
+            case EXPIRED:
+                expired += count;
+                break;
+            default:
+                removed += count;
+                break;
+        }
+    }
+
+    void complete(final LivingEntity entity, final BuffSnapshot after) {
+        this.entity = entity;
+        this.newMultiplier = after.getMultiplier(type);
+        this.newBonus = after.getFlatBonus(type);
+        this.active = after.isActive(type);
+    }
+
+    /**
+     * @return the entity whose buffs changed, or null if it no longer exists
+     */
+    public LivingEntity getEntity() {
+        return entity;
+    }
+
+    /**
+     * @return true if the totals of the type differ from before the changes
+     */
+    public boolean isModified() {
+        return oldMultiplier != newMultiplier || oldBonus != newBonus;
+    }
+
+    @Override
+    public String toString() {
+        return "BuffChange{" + entityId + ", " + type
+                + ", added=" + added + ", overwritten=" + overwritten + ", stacked=" + stacked
+                + ", expired=" + expired + ", removed=" + removed
+                + ", multiplier=" + oldMultiplier + "->" + newMultiplier
+                + ", bonus=" + oldBonus + "->" + newBonus + "}";
+    }
+}
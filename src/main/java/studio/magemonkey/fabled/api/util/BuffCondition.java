@@ -0,0 +1,142 @@
+/**
+ * Fabled
+ * studio.magemonkey.fabled.api.util.BuffCondition
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Copyright (c) 2024 MageMonkeyStudio
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software") to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package studio.magemonkey.fabled.api.util;
+
+import org.bukkit.Material;
+import org.bukkit.attribute.Attribute;
+import org.bukkit.attribute.AttributeInstance;
+import org.bukkit.entity.Player;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * A condition a buff only applies under, tested against the player values are applied for.
+ * Conditions are compiled once when the buff is added, so applying buffs never parses them.
+ * <p>
+ * The text form supports the following conditions, which can be combined with {@code &}
+ * and negated with a leading {@code !}:
+ * <ul>
+ *     <li>{@code player} - values are applied for a player</li>
+ *     <li>{@code permission:<node>} - the player has the permission</li>
+ *     <li>{@code weapon:<class>} - the item in the main hand is of the class, e.g. SWORD or AXE</li>
+ *     <li>{@code attribute:<attribute>>=<value>} - the player's attribute is at least the value,
+ *     {@code <=} checks for at most the value</li>
+ * </ul>
+ */
+@FunctionalInterface
+public interface BuffCondition {
+    /**
+     * @param player player the value is applied for, null if it isn't applied for a player
+     * @return true if the buff applies
+     */
+    boolean test(Player player);
+
+    /**
+     * Compiles the text form of a condition
+     *
+     * @param condition condition to compile
+     * @return the compiled condition
+     * @throws IllegalArgumentException if the condition is malformed
+     */
+    static BuffCondition compile(final String condition) {
+        final List<BuffCondition> parts = new ArrayList<>();
+        for (final String part : condition.split("&")) {
+            parts.add(compilePart(part.trim()));
+        }
+        if (parts.size() == 1) return parts.get(0);
+
+        final BuffCondition[] all = parts.toArray(new BuffCondition[0]);
+        return player -> {
+            for (final BuffCondition part : all) {
+                if (!part.test(player)) return false;
+            }
+            return true;
+        };
+    }
+
+    private static BuffCondition compilePart(final String condition) {
+        if (condition.startsWith("!")) {
+            final BuffCondition negated = compilePart(condition.substring(1).trim());
+            return player -> !negated.test(player);
+        }
+
+        final int    split = condition.indexOf(':');
+        final String type  = (split < 0 ? condition : condition.substring(0, split)).toLowerCase(Locale.ROOT);
+        final String value = split < 0 ? "" : condition.substring(split + 1).trim();
+        switch (type) {
+            case "player":
+                return player -> player != null;
+            case "permission":
+                if (value.isEmpty()) break;
+                return player -> player != null && player.hasPermission(value);
+            case "weapon":
+                if (value.isEmpty()) break;
+                // Resolve the matching materials once, so testing is a set lookup. Only whole
+                // name parts match, so AXE doesn't pick up PICKAXE
+                final String        suffix    = value.toUpperCase(Locale.ROOT);
+                final String        part      = "_" + suffix;
+                final Set<Material> materials = EnumSet.noneOf(Material.class);
+                for (final Material material : Material.values()) {
+                    final String name = material.name();
+                    if (name.equals(suffix) || name.endsWith(part)) materials.add(material);
+                }
+                return player -> player != null
+                        && materials.contains(player.getInventory().getItemInMainHand().getType());
+            case "attribute":
+                return compileAttribute(condition, value);
+            default:
+                break;
+        }
+        throw new IllegalArgumentException("Invalid buff condition: " + condition);
+    }
+
+    private static BuffCondition compileAttribute(final String condition, final String value) {
+        final boolean atLeast = value.contains(">=");
+        final int     split   = value.indexOf(atLeast ? ">=" : "<=");
+        if (split < 0) throw new IllegalArgumentException("Invalid buff condition: " + condition);
+
+        final Attribute attribute;
+        final double    threshold;
+        try {
+            attribute = Attribute.valueOf(value.substring(0, split).trim().toUpperCase(Locale.ROOT));
+            threshold = Double.parseDouble(value.substring(split + 2).trim());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid buff condition: " + condition, e);
+        }
+
+        return player -> {
+            if (player == null) return false;
+            final AttributeInstance instance = player.getAttribute(attribute);
+            if (instance == null) return false;
+            return atLeast ? instance.getValue() >= threshold : instance.getValue() <= threshold;
+        };
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * Fabled
+ * studio.magemonkey.fabled.api.util.BuffCurve
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Copyright (c) 2024 MageMonkeyStudio
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software") to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package studio.magemonkey.fabled.api.util;
+
+/**
+ * The shape a decaying or ramping buff follows from its start to its end value
+ */
+public enum BuffCurve {
+    /**
+     * Changes at a constant rate
+     */
+    LINEAR {
+        @Override
+        public double apply(final double progress) {
+            return progress;
+        }
+    },
+    /**
+     * Changes slowly at first and speeds up towards the end
+     */
+    EASE_IN {
+        @Override
+        public double apply(final double progress) {
+            return progress * progress;
+        }
+    },
+    /**
+     * Changes quickly at first and slows down towards the end
+     */
+    EASE_OUT {
+        @Override
+        public double apply(final double progress) {
+            final double remaining = 1 - progress;
+            return 1 - remaining * remaining;
+        }
+    };
+
+    /**
+     * @param progress elapsed part of the duration, between 0 and 1
+     * @return how far the value moved from the start to the end value, between 0 and 1
+     */
+    public abstract double apply(double progress);
+}
@@ -26,26 +26,40 @@
  */
 package studio.magemonkey.fabled.api.util;
 
-import org.bukkit.Bukkit;
+import org.bukkit.Location;
 import org.bukkit.entity.LivingEntity;
 import org.bukkit.entity.Player;
-import org.bukkit.scheduler.BukkitRunnable;
-import studio.magemonkey.fabled.Fabled;
-import studio.magemonkey.fabled.api.event.BuffExpiredEvent;
-import studio.magemonkey.fabled.log.LogType;
-import studio.magemonkey.fabled.log.Logger;
 
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Map;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
 
 /**
- * Represents buffs set on an entity
+ * Represents buffs set on an entity. Every change publishes a new {@link BuffSnapshot}
+ * and reads only go through the current snapshot, so buffs can be applied from any
+ * thread without locking. Changes are serialized on the data itself.
  */
 public class BuffData {
-    private final Map<String, Map<String, Buff>> buffs = new HashMap<>();
+    /**
+     * Shared sentinel for entities without buffs. It never holds any buffs.
+     */
+    static final BuffData EMPTY = new BuffData();
+
+    private          BuffStore            store    = BuffStore.create();
+    private final    BuffExpiryWheel.Node expiry   = new BuffExpiryWheel.Node(this);
+    private volatile BuffSnapshot         snapshot = BuffSnapshot.EMPTY;
 
-    private final LivingEntity entity;
+    // The entity is only weakly referenced so buffs never keep removed entities in memory
+    private final UUID                        entityId;
+    private final WeakReference<LivingEntity> entity;
+    private final boolean                     player;
+    private       boolean                     detached;
+
+    // Partition the data is registered in, guarded by the data lock
+    private UUID    world;
+    private long    region;
+    private boolean locating;
 
     /**
      * Initializes new buff data for the entity
@@ -53,17 +67,78 @@ public class BuffData {
      * @param entity entity to initialize for
      */
     public BuffData(LivingEntity entity) {
-        this.entity = entity;
+        this.entityId = entity.getUniqueId();
+        this.entity = new WeakReference<>(entity);
+        this.player = entity instanceof Player;
+    }
+
+    private BuffData() {
+        this.entityId = new UUID(0, 0);
+        this.entity = new WeakReference<>(null);
+        this.player = false;
+        this.detached = true;
+    }
+
+    /**
+     * @return the UUID of the entity the buffs belong to
+     */
+    public UUID getEntityId() {
+        return entityId;
+    }
+
+    /**
+     * @return the entity the buffs belong to, or null if it no longer exists
+     */
+    public LivingEntity getEntity() {
+        return entity.get();
+    }
+
+    /**
+     * @return true if the entity was removed while its buffs are still tracked
+     */
+    boolean isLeaked() {
+        final LivingEntity living = entity.get();
+        return !detached && (living == null || !living.isValid());
     }
 
     public double getMultiplier(final BuffType buffType, final String category) {
-        return category == null || category.isEmpty() ? getMultiplier(buffType.getLocalizedName())
-                : getMultiplier(buffType.getLocalizedName(), buffType.getLocalizedName() + "_" + category);
+        return getMultiplier(BuffKey.of(buffType, category));
     }
 
     public double getFlatBonus(final BuffType buffType, final String category) {
-        return category == null || category.isEmpty() ? getFlatBonus(buffType.getLocalizedName())
-                : getFlatBonus(buffType.getLocalizedName(), buffType.getLocalizedName() + "_" + category);
+        return getFlatBonus(BuffKey.of(buffType, category));
+    }
+
+    /**
+     * Retrieves the combined multiplier of all buffs of the key, including
+     * the buffs of the type the key is a category of
+     *
+     * @param key resolved buff key
+     * @return total multiplier
+     */
+    public double getMultiplier(final BuffKey key) {
+        return snapshot.getMultiplier(key);
+    }
+
+    /**
+     * Retrieves the combined flat bonus of all buffs of the key, including
+     * the buffs of the type the key is a category of
+     *
+     * @param key resolved buff key
+     * @return total flat bonus
+     */
+    public double getFlatBonus(final BuffKey key) {
+        return snapshot.getFlatBonus(key);
+    }
+
+    /**
+     * Retrieves an immutable view of the current buffs. The snapshot stays valid
+     * after the buffs change and can be read from any thread.
+     *
+     * @return the current snapshot
+     */
+    public BuffSnapshot getSnapshot() {
+        return snapshot;
     }
 
     /**
@@ -90,6 +165,18 @@ public class BuffData {
      * @param ticks how long to apply the buff for
      */
     public void addBuff(final String type, final Buff buff, final int ticks) {
+        doAddBuff(BuffKey.of(type), buff, ticks);
+    }
+
+    /**
+     * Adds a buff to the buff collection. If a buff already exists with the same
+     * key, it will be overwritten.
+     *
+     * @param type  resolved type of buff to add
+     * @param buff  buff details
+     * @param ticks how long to apply the buff for
+     */
+    public void addBuff(final BuffKey type, final Buff buff, final int ticks) {
         doAddBuff(type, buff, ticks);
     }
 
@@ -119,16 +206,330 @@ public class BuffData {
      * @param ticks    how long to apply the buff for
      */
     public void addBuff(final String type, final String category, final Buff buff, final int ticks) {
-        doAddBuff(type + (category != null ? "_" + category : ""), buff, ticks);
+        doAddBuff(BuffKey.of(type, category), buff, ticks);
+    }
+
+    private void doAddBuff(final BuffKey type, final Buff buff, final int ticks) {
+        final BuffMetrics metrics = BuffManager.getInstance().getMetrics();
+        if (!metrics.sampleAdd()) {
+            putBuff(type, buff, ticks);
+            return;
+        }
+
+        final long start = System.nanoTime();
+        putBuff(type, buff, ticks);
+        metrics.recordAddLatency(System.nanoTime() - start);
+    }
+
+    private void putBuff(final BuffKey type, final Buff buff, final int ticks) {
+        final BuffExpiryWheel wheel    = BuffManager.getInstance().getExpiryWheel();
+        final long            deadline = wheel.currentTick() + ticks;
+
+        final boolean added;
+        synchronized (this) {
+            added = !detached;
+            if (added) insert(type, buff, deadline, null, null);
+        }
+
+        // Scheduling happens outside the lock as the wheel locks data while expiring
+        if (added) {
+            wheel.schedule(expiry, deadline);
+            final BuffPersistence persistence = persistence();
+            if (persistence != null) persistence.put(entityId, type, buff, deadline);
+            return;
+        }
+
+        // The data was cleared and dropped from the manager, so the buff goes to the current data instead
+        final BuffData current = BuffManager.getBuffData(entity.get(), true);
+        if (current != null && current != this) current.putBuff(type, buff, ticks);
+    }
+
+    /**
+     * Adds a buff whose value moves from the value of the buff to the end value over its
+     * duration, e.g. a burst fading from x2.0 to x1.0. The current value is computed
+     * whenever buffs are applied, so the buff is never updated while it decays and stops
+     * having an effect once its duration is over. Decaying buffs always count once,
+     * regardless of their stacks.
+     *
+     * @param type     resolved type of buff to add
+     * @param buff     buff details, its value is the value at the start
+     * @param endValue value at the end of the duration
+     * @param ticks    how long the buff takes to reach the end value
+     * @param curve    shape of the change
+     */
+    public void addDecayingBuff(final BuffKey type,
+                                final Buff buff,
+                                final double endValue,
+                                final int ticks,
+                                final BuffCurve curve) {
+        final BuffExpiryWheel wheel    = BuffManager.getInstance().getExpiryWheel();
+        final long            now      = wheel.currentTick();
+        final long            deadline = now + ticks;
+        final BuffDecay       decay    = new BuffDecay(curve, buff.isPercent(), buff.getValue(), endValue, now, deadline);
+
+        final boolean added;
+        synchronized (this) {
+            added = !detached;
+            if (added) insert(type, buff, deadline, decay, null);
+        }
+
+        if (added) {
+            wheel.schedule(expiry, deadline);
+            final BuffRecorder recorder = BuffManager.getInstance().getRecorder();
+            if (recorder != null) recorder.decay(entityId, type, buff, endValue, ticks, curve);
+            return;
+        }
+
+        // The data was cleared and dropped from the manager, so the buff goes to the current data instead
+        final BuffData current = BuffManager.getBuffData(entity.get(), true);
+        if (current != null && current != this) current.addDecayingBuff(type, buff, endValue, ticks, curve);
+    }
+
+    /**
+     * Adds a buff that only applies while its condition holds for the player values are
+     * applied for, e.g. only while wielding a sword. The condition is compiled once here,
+     * so applying buffs never parses it. See {@link BuffCondition} for the supported conditions.
+     *
+     * @param type      resolved type of buff to add
+     * @param buff      buff details
+     * @param ticks     how long to apply the buff for
+     * @param condition condition the buff applies under
+     * @throws IllegalArgumentException if the condition is malformed
+     */
+    public void addBuff(final BuffKey type, final Buff buff, final int ticks, final String condition) {
+        addConditional(type, buff, ticks, BuffCondition.compile(condition), condition);
+    }
+
+    /**
+     * Adds a buff that only applies while its condition holds for the player values are
+     * applied for. Conditional buffs are evaluated whenever buffs are applied instead of
+     * being part of the precomputed totals, and they aren't persisted.
+     *
+     * @param type      resolved type of buff to add
+     * @param buff      buff details
+     * @param ticks     how long to apply the buff for
+     * @param condition compiled condition the buff applies under
+     */
+    public void addBuff(final BuffKey type, final Buff buff, final int ticks, final BuffCondition condition) {
+        addConditional(type, buff, ticks, condition, null);
+    }
+
+    /**
+     * @param source text form of the condition for the recorded trace, or null if it was given compiled
+     */
+    private void addConditional(final BuffKey type,
+                                final Buff buff,
+                                final int ticks,
+                                final BuffCondition condition,
+                                final String source) {
+        final BuffExpiryWheel wheel    = BuffManager.getInstance().getExpiryWheel();
+        final long            deadline = wheel.currentTick() + ticks;
+
+        final boolean added;
+        synchronized (this) {
+            added = !detached;
+            if (added) insert(type, buff, deadline, null, condition);
+        }
+
+        if (added) {
+            wheel.schedule(expiry, deadline);
+            final BuffRecorder recorder = BuffManager.getInstance().getRecorder();
+            if (recorder != null) recorder.condition(entityId, type, buff, ticks, source);
+            return;
+        }
+
+        // The data was cleared and dropped from the manager, so the buff goes to the current data instead
+        final BuffData current = BuffManager.getBuffData(entity.get(), true);
+        if (current != null && current != this) current.addConditional(type, buff, ticks, condition, source);
+    }
+
+    /**
+     * Stores a buff and publishes the change. Must be called while holding the lock.
+     *
+     * @param type      type of buff to add
+     * @param buff      buff details
+     * @param deadline  tick the buff expires at
+     * @param decay     curve of the buff, or null if its value is constant
+     * @param condition condition of the buff, or null if it always applies
+     */
+    private void insert(final BuffKey type,
+                        final Buff buff,
+                        final long deadline,
+                        final BuffDecay decay,
+                        final BuffCondition condition) {
+        // Overwriting simply replaces the entry, the wheel picks up the new deadline lazily
+        final BuffSnapshot before   = snapshot;
+        final boolean      replaced = store.put(type, buff, deadline, decay, condition);
+        if (store.size() > BuffStore.COMPACT_LIMIT) store = store.promote();
+        updateSnapshot(type);
+        changed(type, replaced ? BuffChange.Kind.OVERWRITTEN : BuffChange.Kind.ADDED, 1, before);
+        BuffManager.getInstance().getMetrics().recordAdd(type, replaced);
+        // Decaying and conditional buffs are recorded by their callers, along with their curve or condition
+        final BuffRecorder recorder = BuffManager.getInstance().getRecorder();
+        if (recorder != null && decay == null && condition == null) {
+            recorder.add(entityId, type, buff, (int) (deadline - BuffManager.getInstance().getCurrentTick()), replaced);
+        }
+        if (!replaced) {
+            final BuffTypeIndex typeIndex = BuffManager.getInstance().getTypeIndex();
+            typeIndex.addType(type, this);
+            typeIndex.addBuff(buff.getKey(), this);
+        }
+        // Entities move while buffed, so every add moves the data along with them
+        locateLater();
     }
 
-    private void doAddBuff(final String type, final Buff buff, final int ticks) {
-        final Map<String, Buff> typeBuffs = buffs.computeIfAbsent(type, t -> new HashMap<>());
-        final Buff              conflict  = typeBuffs.remove(buff.getKey());
-        if (conflict != null) conflict.task.cancel();
+    /**
+     * Restarts the duration of an active buff in place, e.g. for auras that reapply
+     * the same buff every second. The buff itself and the totals stay untouched,
+     * so this neither publishes a new snapshot nor notifies subscribers.
+     *
+     * @param type  resolved type of the buff
+     * @param key   key of the buff
+     * @param ticks how long the buff should last from now on
+     * @return true if the buff was active and refreshed
+     */
+    public boolean refresh(final BuffKey type, final String key, final int ticks) {
+        return updateDeadline(type, key, ticks, false);
+    }
+
+    /**
+     * Extends the remaining duration of an active buff in place
+     *
+     * @param type  resolved type of the buff
+     * @param key   key of the buff
+     * @param ticks ticks to add to the remaining duration
+     * @return true if the buff was active and extended
+     */
+    public boolean extend(final BuffKey type, final String key, final int ticks) {
+        return updateDeadline(type, key, ticks, true);
+    }
 
-        typeBuffs.put(buff.getKey(), buff);
-        buff.task = Fabled.schedule(new BuffTask(type, buff.getKey()), ticks);
+    private boolean updateDeadline(final BuffKey type, final String key, final int ticks, final boolean extend) {
+        final BuffExpiryWheel wheel = BuffManager.getInstance().getExpiryWheel();
+        final Buff            buff;
+        final long            deadline;
+        final int             stacks;
+        final boolean         persisted;
+        synchronized (this) {
+            buff = detached ? null : store.find(type, key);
+            if (buff == null) return false;
+
+            deadline = extend ? store.getDeadline(type, key) + ticks : wheel.currentTick() + ticks;
+            stacks = store.getStacks(type, key);
+            store.update(type, key, deadline, stacks);
+            locateLater();
+
+            // Refreshing restarts the curve of a decaying buff, extending stretches it
+            final BuffDecay decay = store.getDecay(type, key);
+            persisted = decay == null && store.getCondition(type, key) == null;
+            if (decay != null) {
+                store.setDecay(type, key, decay.between(extend ? decay.getStart() : wheel.currentTick(), deadline));
+                updateSnapshot(type);
+            }
+        }
+
+        // A later deadline is picked up lazily when the node fires for the old one
+        wheel.schedule(expiry, deadline);
+        final BuffPersistence persistence = persisted ? persistence() : null;
+        if (persistence != null) persistence.put(entityId, type, buff, deadline, stacks, 0);
+        final BuffRecorder recorder = BuffManager.getInstance().getRecorder();
+        if (recorder != null) recorder.deadline(entityId, type, key, ticks, extend);
+        return true;
+    }
+
+    /**
+     * Adds a stack to a buff, or adds the buff with a single stack if it isn't active.
+     * Stacks count like separate buffs, so percent buffs multiply and flat buffs add up.
+     * Adding a stack restarts the duration of the buff and keeps the buff already stored,
+     * the given buff is only used if the buff isn't active yet.
+     *
+     * @param type      resolved type of the buff
+     * @param buff      buff details of a single stack
+     * @param ticks     how long the buff should last from now on
+     * @param maxStacks maximum number of stacks
+     * @return the number of stacks after adding
+     */
+    public int addStack(final BuffKey type, final Buff buff, final int ticks, final int maxStacks) {
+        final BuffExpiryWheel wheel    = BuffManager.getInstance().getExpiryWheel();
+        final long            deadline = wheel.currentTick() + ticks;
+
+        final Buff    stored;
+        final int     stacks;
+        final boolean persisted;
+        synchronized (this) {
+            if (detached) {
+                stored = null;
+                stacks = 0;
+                persisted = false;
+            } else if ((stored = store.find(type, buff.getKey())) == null) {
+                insert(type, buff, deadline, null, null);
+                stacks = 1;
+                persisted = true;
+            } else {
+                persisted = store.getDecay(type, buff.getKey()) == null
+                        && store.getCondition(type, buff.getKey()) == null;
+                final int current = store.getStacks(type, buff.getKey());
+                stacks = Math.max(1, Math.min(maxStacks, current + 1));
+                store.update(type, buff.getKey(), deadline, stacks);
+                locateLater();
+                final BuffRecorder recorder = BuffManager.getInstance().getRecorder();
+                if (recorder != null) recorder.stack(entityId, type, buff, ticks, maxStacks);
+                if (stacks != current) {
+                    final BuffSnapshot before = snapshot;
+                    updateSnapshot(type);
+                    changed(type, BuffChange.Kind.STACKED, stacks - current, before);
+                }
+            }
+        }
+
+        if (stacks > 0) {
+            wheel.schedule(expiry, deadline);
+            final BuffPersistence persistence = persisted ? persistence() : null;
+            if (persistence != null) {
+                persistence.put(entityId, type, stored == null ? buff : stored, deadline, stacks, maxStacks);
+            }
+            return stacks;
+        }
+
+        // The data was cleared and dropped from the manager, so the stack goes to the current data instead
+        final BuffData current = BuffManager.getBuffData(entity.get(), true);
+        return current != null && current != this ? current.addStack(type, buff, ticks, maxStacks) : 0;
+    }
+
+    /**
+     * Recomputes the totals of the snapshot if it holds buffs of the key or its
+     * categories, after the key was linked to a parent
+     *
+     * @param key key that got a parent
+     */
+    void relink(final BuffKey key) {
+        synchronized (this) {
+            if (snapshot.inherits(key)) snapshot = snapshot.relink();
+        }
+    }
+
+    /**
+     * Publishes a new snapshot with the current buffs of a type. This should be
+     * called whenever the buffs of the type change so readers pick them up.
+     *
+     * @param type type of buff that changed
+     */
+    private void updateSnapshot(final BuffKey type) {
+        snapshot = snapshot.with(type, store.get(type), store.getStacks(type),
+                store.getDecays(type), store.getConditions(type));
+    }
+
+    /**
+     * Reports a change to subscribers of buff changes, if there are any
+     *
+     * @param type   type of buff that changed
+     * @param kind   kind of change
+     * @param count  number of buffs changed
+     * @param before snapshot before the change
+     */
+    private void changed(final BuffKey type, final BuffChange.Kind kind, final int count, final BuffSnapshot before) {
+        final BuffManager manager = BuffManager.getInstance();
+        if (manager.isObserved(entityId)) manager.changed(entityId, type, kind, count, before);
     }
 
     /**
@@ -174,7 +575,7 @@ public class BuffData {
         return doApply(value, type);
     }**/
     public double apply(final String type, final double value) {
-        return doApply(value, null, type);
+        return doApply(snapshot, tracer(), value, null, BuffKey.find(type), false);
     }
 
 
@@ -193,8 +594,11 @@ public class BuffData {
     }
 
     public boolean isActive(final BuffType type) {
-        final Map<String, Buff> typeBuffs = buffs.get(type.getLocalizedName());
-        return typeBuffs != null;
+        return isActive(BuffKey.of(type));
+    }
+
+    public boolean isActive(final BuffKey type) {
+        return snapshot.isActive(type);
     }
 
     /**
@@ -203,12 +607,98 @@ public class BuffData {
      * @param type type of buff
      */
     public void clearByType(final BuffType type) {
-        Map<String, Buff> buffType = buffs.get(type.getLocalizedName());
-        if (buffType == null) return;
-        for (final Buff buff : buffType.values()) {
-            buff.task.cancel();
+        clearByType(BuffKey.of(type));
+    }
+
+    /**
+     * Clears buffs by the given type
+     *
+     * @param type resolved type of buff
+     */
+    public void clearByType(final BuffKey type) {
+        // The expiry node stays scheduled and cleans up once it fires
+        synchronized (this) {
+            final BuffSnapshot before  = snapshot;
+            final List<String> removed = new ArrayList<>();
+            store.removeIf((t, buff, deadline) -> t == type && removed.add(buff.getKey()));
+            if (removed.isEmpty()) return;
+            updateSnapshot(type);
+            changed(type, BuffChange.Kind.REMOVED, removed.size(), before);
+            BuffManager.getInstance().getMetrics().recordRemoved(type, removed.size());
+            BuffManager.getInstance().getTypeIndex().removeType(type, this);
+            unindex(removed);
+        }
+
+        final BuffRecorder recorder = BuffManager.getInstance().getRecorder();
+        if (recorder != null) recorder.clearType(entityId, type);
+
+        final BuffPersistence persistence = persistence();
+        if (persistence != null) persistence.clearType(entityId, type);
+    }
+
+    /**
+     * Removes every buff with the given key, regardless of its type
+     *
+     * @param key key of the buffs to remove
+     */
+    public void removeBuff(final String key) {
+        final BuffPersistence persistence = persistence();
+        final List<BuffKey>   cleared     = new ArrayList<>();
+        final List<BuffKey>   types       = new ArrayList<>();
+        final List<Buff>      remaining   = new ArrayList<>();
+        final List<Long>      deadlines   = new ArrayList<>();
+        final List<Integer>   stacks      = new ArrayList<>();
+        synchronized (this) {
+            final BuffSnapshot before = snapshot;
+            store.removeIf((type, buff, deadline) -> buff.getKey().equals(key) && cleared.add(type));
+            if (cleared.isEmpty()) return;
+
+            final BuffRecorder recorder = BuffManager.getInstance().getRecorder();
+            if (recorder != null) recorder.remove(entityId, key);
+
+            final BuffTypeIndex typeIndex = BuffManager.getInstance().getTypeIndex();
+            for (final BuffKey type : cleared) {
+                updateSnapshot(type);
+                changed(type, BuffChange.Kind.REMOVED, 1, before);
+                BuffManager.getInstance().getMetrics().recordRemoved(type, 1);
+                if (!store.hasType(type)) typeIndex.removeType(type, this);
+            }
+            typeIndex.removeBuff(key, this);
+
+            if (persistence != null) {
+                store.forEach((type, buff, deadline) -> {
+                    if (!cleared.contains(type)
+                            || store.getDecay(type, buff.getKey()) != null
+                            || store.getCondition(type, buff.getKey()) != null) return;
+                    types.add(type);
+                    remaining.add(buff);
+                    deadlines.add(deadline);
+                    stacks.add(store.getStacks(type, buff.getKey()));
+                });
+            }
+        }
+
+        // The log has no single buff removal, so the remaining buffs of the type are written again
+        if (persistence == null) return;
+        for (final BuffKey type : cleared) {
+            persistence.clearType(entityId, type);
+        }
+        for (int i = 0; i < remaining.size(); i++) {
+            persistence.put(entityId, types.get(i), remaining.get(i), deadlines.get(i), stacks.get(i), 0);
+        }
+    }
+
+    /**
+     * Drops removed buff keys from the type index. Must be called while holding
+     * the lock, after the buffs were removed from the data.
+     *
+     * @param removed keys of the removed buffs
+     */
+    private void unindex(final List<String> removed) {
+        final BuffTypeIndex typeIndex = BuffManager.getInstance().getTypeIndex();
+        for (final String key : removed) {
+            if (!store.hasBuff(key)) typeIndex.removeBuff(key, this);
         }
-        buffs.remove(type.getLocalizedName());
     }
 
     /**
@@ -225,68 +715,151 @@ public class BuffData {
     }**/
 
     public double apply(final BuffType type, final String category, final double value, final Player player) {
-        return category == null || category.isEmpty() ? doApply(value, player, type.getLocalizedName())
-                : doApply(value,player, type.getLocalizedName(), type.getLocalizedName() + "_" + category);
+        return apply(BuffKey.of(type, category), value, player);
     }
 
-    /**private double doApply(final double value, final String... types) {**/ //changed
-    private double doApply(final double value, final Player player, final String... types) {
+    /**
+     * Applies all buffs of the given key to the specified value, including
+     * the buffs of the type the key is a category of
+     *
+     * @param key    resolved buff key
+     * @param value  value to modify
+     * @param player player the value is applied for, if any
+     * @return value after all buff applications
+     */
+    public double apply(final BuffKey key, final double value, final Player player) {
+        return doApply(snapshot, tracer(), value, player, key, true);
+    }
 
-        // Ignore zeroed out values that shouldn't get buffs
-        if (value <= 0) return value;
-
-        double multiplier = 1;
-        double bonus      = 0;
-        Logger.log(LogType.BUFF, 1, "Buffs:");
-        for (final String type : types) {
-            final Map<String, Buff> typeBuffs = buffs.get(type);
-            if (typeBuffs == null) {
-                continue;
-            }
+    /**
+     * Applies the buffs of several keys in one pass. All values are computed
+     * against the same state of the buffs.
+     *
+     * @param keys    resolved buff keys
+     * @param values  values to modify, one per key
+     * @param results array receiving the modified values, may be the values array
+     * @param player  player the values are applied for, if any
+     */
+    public void apply(final BuffKey[] keys, final double[] values, final double[] results, final Player player) {
+        final BuffSnapshot snapshot = this.snapshot;
+        final BuffTracer   tracer   = tracer();
+        for (int i = 0; i < keys.length; i++) {
+            results[i] = doApply(snapshot, tracer, values[i], player, keys[i], true);
+        }
+    }
 
-            for (final Buff buff : typeBuffs.values()) {
-                if (buff.isPercent()) {
-                    Logger.log(LogType.BUFF, 1, "  - x" + buff.getValue());
-                    multiplier *= buff.getValue();
-                } else {
-                    Logger.log(LogType.BUFF, 1, "  - +" + buff.getValue());
-                    bonus += buff.getValue();
-                }
-            }
+    /**
+     * Retrieves the multipliers and flat bonuses of several keys in one pass,
+     * e.g. for stat displays. All values come from the same state of the buffs.
+     *
+     * @param keys        resolved buff keys
+     * @param multipliers array receiving the total multiplier of each key
+     * @param bonuses     array receiving the total flat bonus of each key
+     */
+    public void getModifiers(final BuffKey[] keys, final double[] multipliers, final double[] bonuses) {
+        final BuffSnapshot snapshot = this.snapshot;
+        for (int i = 0; i < keys.length; i++) {
+            multipliers[i] = snapshot.getMultiplier(keys[i]);
+            bonuses[i] = snapshot.getFlatBonus(keys[i]);
         }
-        double result = Math.max(0, value * multiplier + bonus);
-        Logger.log(LogType.BUFF, 1, "Result: x" + multiplier + ", +" + bonus + ", " + value + " -> " + result);
+    }
 
-        // Negatives aren't well received by bukkit, so return 0 instead
-        if (multiplier <= 0) return 0;
+    /**
+     * Applies the buffs of a type and category to the specified value in a single pass and
+     * fills the breakdown with the multiplier, flat bonus, result and, if it collects them,
+     * the contributing buffs. Reusing the breakdown avoids allocating on every hit.
+     *
+     * @param type     name of the buff type
+     * @param category sub category of the type (e.g. damage classification), may be null
+     * @param value    value to modify
+     * @param player   player the value is applied for, if any
+     * @param result   breakdown to fill, replacing its previous contents
+     * @return the filled breakdown
+     */
+    public BuffBreakdown breakdown(final String type,
+                                   final String category,
+                                   final double value,
+                                   final Player player,
+                                   final BuffBreakdown result) {
+        return breakdown(BuffKey.of(type, category), value, player, result);
+    }
+
+    /**
+     * Applies the buffs of a key to the specified value in a single pass and fills the
+     * breakdown with the multiplier, flat bonus, result and, if it collects them, the
+     * contributing buffs. This replaces separate calls to {@link #getMultiplier(BuffKey)},
+     * {@link #getFlatBonus(BuffKey)} and {@link #apply(BuffKey, double, Player)}.
+     *
+     * @param key    resolved buff key
+     * @param value  value to modify
+     * @param player player the value is applied for, if any
+     * @param result breakdown to fill, replacing its previous contents
+     * @return the filled breakdown
+     */
+    public BuffBreakdown breakdown(final BuffKey key,
+                                   final double value,
+                                   final Player player,
+                                   final BuffBreakdown result) {
+        final BuffMetrics metrics = BuffManager.getInstance().getMetrics();
+        if (metrics.sampleApply()) {
+            final long start = System.nanoTime();
+            snapshot.breakdown(key, value, player, result);
+            metrics.recordApplyLatency(System.nanoTime() - start);
+        } else {
+            snapshot.breakdown(key, value, player, result);
+        }
 
+        final BuffTracer tracer = tracer();
+        if (tracer != null && value > 0 && key != null) {
+            tracer.onApply(entity.get(), key, value, result.getMultiplier(), result.getBonus(), result.getResult());
+        }
         return result;
     }
 
-    private double getFlatBonus(final String... types) {
-        double bonus = 0;
-        for (final String type : types) {
-            for (final Buff buff : buffs.getOrDefault(type, Collections.emptyMap()).values()) {
-                if (!buff.isPercent()) {
-                    bonus += buff.getValue();
-                }
-            }
-        }
-        // Negatives aren't well received by bukkit, so return 0 instead
-        return bonus;
+    private BuffTracer tracer() {
+        return BuffManager.getInstance().getTracer(entityId);
     }
 
-    private double getMultiplier(final String... types) {
-        double multiplier = 1;
-        for (final String type : types) {
-            for (final Buff buff : buffs.getOrDefault(type, Collections.emptyMap()).values()) {
-                if (buff.isPercent()) {
-                    multiplier *= buff.getValue();
-                }
-            }
+    private double doApply(final BuffSnapshot snapshot,
+                           final BuffTracer tracer,
+                           final double value,
+                           final Player player,
+                           final BuffKey key,
+                           final boolean inherit) {
+        final BuffMetrics metrics = BuffManager.getInstance().getMetrics();
+        if (!metrics.sampleApply()) return applySnapshot(snapshot, tracer, value, player, key, inherit);
+
+        final long   start  = System.nanoTime();
+        final double result = applySnapshot(snapshot, tracer, value, player, key, inherit);
+        metrics.recordApplyLatency(System.nanoTime() - start);
+        return result;
+    }
+
+    private double applySnapshot(final BuffSnapshot snapshot,
+                                 final BuffTracer tracer,
+                                 final double value,
+                                 final Player player,
+                                 final BuffKey key,
+                                 final boolean inherit) {
+        // Ignore zeroed out values that shouldn't get buffs
+        if (value <= 0 || key == null) return value;
+
+        // Inherited lookups resolve the closest category with buffs, which already holds the totals above it
+        final int index      = inherit ? snapshot.resolve(key) : snapshot.indexOf(key);
+        double    multiplier = index < 0 ? 1 : inherit ? snapshot.totalMultiplier(index) : snapshot.multiplier(index);
+        double    bonus      = index < 0 ? 0 : inherit ? snapshot.totalBonus(index) : snapshot.bonus(index);
+        if (snapshot.isDynamic()) {
+            final long now = BuffManager.getInstance().getCurrentTick();
+            multiplier *= snapshot.dynamicMultiplier(key, inherit, now, player);
+            bonus += snapshot.dynamicBonus(key, inherit, now, player);
         }
+
         // Negatives aren't well received by bukkit, so return 0 instead
-        return Math.max(0, multiplier);
+        final double result = multiplier <= 0 ? 0 : Math.max(0, value * multiplier + bonus);
+
+        if (tracer != null) tracer.onApply(entity.get(), key, value, multiplier, bonus, result);
+
+        return result;
     }
 
     /**
@@ -325,42 +898,263 @@ public class BuffData {
      * Clears all buffs on the entity and stops associated tasks.
      */
     public void clear() {
-        for (final Map<String, Buff> typeBuffs : buffs.values()) {
-            for (final Buff buff : typeBuffs.values()) {
-                buff.task.cancel();
+        detach(true);
+    }
+
+    /**
+     * Drops all buffs and unregisters the data from the manager
+     *
+     * @param forget whether persisted buffs should be removed as well. This is false when the
+     *               entity merely left the server, so its buffs can be restored later.
+     */
+    void detach(final boolean forget) {
+        detach(forget, true);
+    }
+
+    /**
+     * Drops all buffs and unregisters the data from the manager
+     *
+     * @param forget whether persisted buffs should be removed as well
+     * @param cancel whether to cancel the expiry, false if the caller cancels expiries in bulk
+     */
+    void detach(final boolean forget, final boolean cancel) {
+        synchronized (this) {
+            detached = true;
+            if (world != null) {
+                BuffManager.getInstance().getPartitions().remove(world, region, this);
+                world = null;
             }
+
+            final BuffMetrics   metrics   = BuffManager.getInstance().getMetrics();
+            final BuffTypeIndex typeIndex = BuffManager.getInstance().getTypeIndex();
+            final BuffSnapshot  before    = snapshot;
+            store.forEach((type, buff, deadline) -> {
+                metrics.recordRemoved(type, 1);
+                changed(type, BuffChange.Kind.REMOVED, 1, before);
+                typeIndex.removeType(type, this);
+                typeIndex.removeBuff(buff.getKey(), this);
+            });
+            // Quits, unloads and evictions drop the buffs just like clearing them, so they are recorded the same way
+            final BuffRecorder recorder = BuffManager.getInstance().getRecorder();
+            if (recorder != null && store.size() > 0) recorder.clear(entityId);
+            store.clear();
+            snapshot = BuffSnapshot.EMPTY;
         }
-        buffs.clear();
-        BuffManager.clearData(entity);
+        if (cancel) BuffManager.getInstance().getExpiryWheel().cancel(expiry);
+        BuffManager.clearData(entityId, this);
+
+        final BuffPersistence persistence = forget ? persistence() : null;
+        if (persistence != null) persistence.clear(entityId);
     }
 
-    private class BuffTask extends BukkitRunnable {
-        private final String type;
-        private final String key;
+    /**
+     * @param type type of the buff
+     * @param key  key of the buff
+     * @return the number of stacks of the buff, 1 if it was never stacked
+     */
+    int getStacks(final BuffKey type, final String key) {
+        synchronized (this) {
+            return store.getStacks(type, key);
+        }
+    }
 
-        BuffTask(final String type, final String key) {
-            this.type = type;
-            this.key = key;
+    /**
+     * Visits the buffs that can be recreated from their details alone, which are all
+     * buffs that neither decay nor have a condition
+     *
+     * @param type    type to visit, or null to visit every type
+     * @param visitor visitor receiving each buff with the tick it expires at
+     */
+    void forEachPlain(final BuffKey type, final BuffStore.Visitor visitor) {
+        synchronized (this) {
+            store.forEach((buffType, buff, deadline) -> {
+                if (type != null && buffType != type) return;
+                if (store.getDecay(buffType, buff.getKey()) != null) return;
+                if (store.getCondition(buffType, buff.getKey()) != null) return;
+                visitor.visit(buffType, buff, deadline);
+            });
         }
+    }
 
-        @Override
-        public void run() {
-            if (!entity.isValid() || entity.isDead()) {
-                BuffManager.clearData(entity);
-                return;
+    /**
+     * @return the wheel entry expiring the buffs
+     */
+    BuffExpiryWheel.Node getExpiry() {
+        return expiry;
+    }
+
+    /**
+     * Queues the data to be located on the next tick unless it already is.
+     * Must be called while holding the lock.
+     */
+    private void locateLater() {
+        if (locating || detached) return;
+        locating = true;
+        BuffManager.getInstance().locateLater(this);
+    }
+
+    /**
+     * Moves the data to the partition of the current location of its entity. The location
+     * is read before taking the lock, so this must only be called from the main thread.
+     */
+    void locate() {
+        final LivingEntity entity = this.entity.get();
+        locate(entity == null ? null : entity.getLocation());
+    }
+
+    /**
+     * Moves the data to the partition of a location, e.g. the destination of a teleport
+     *
+     * @param location location of the entity, or null if it is unknown
+     */
+    void locate(final Location location) {
+        synchronized (this) {
+            locating = false;
+            if (detached || location == null || location.getWorld() == null) return;
+
+            final UUID world  = location.getWorld().getUID();
+            final long region = BuffPartitions.region(location.getBlockX(), location.getBlockZ());
+            if (world.equals(this.world) && region == this.region) return;
+
+            final BuffPartitions partitions = BuffManager.getInstance().getPartitions();
+            if (this.world != null) partitions.remove(this.world, this.region, this);
+            partitions.add(world, region, this);
+            this.world = world;
+            this.region = region;
+        }
+    }
+
+    /**
+     * Moves the data to the partition of its entity if the entity already left the world
+     * or region that is being unloaded. Must only be called from the main thread.
+     *
+     * @param world  world being unloaded
+     * @param region region being unloaded, or null if the whole world is unloaded
+     * @return true if the entity is elsewhere and the data was moved there
+     */
+    boolean rehome(final UUID world, final Long region) {
+        final LivingEntity entity = this.entity.get();
+        if (entity == null || !entity.isValid()) return false;
+
+        final Location location = entity.getLocation();
+        if (location.getWorld() == null) return false;
+        if (location.getWorld().getUID().equals(world)
+                && (region == null || region == BuffPartitions.region(location.getBlockX(), location.getBlockZ()))) {
+            return false;
+        }
+
+        locate(location);
+        return true;
+    }
+
+    /**
+     * @return the persistence log if buffs of this entity are persisted, otherwise null
+     */
+    private BuffPersistence persistence() {
+        return player ? BuffManager.getInstance().getPersistence() : null;
+    }
+
+    /**
+     * Removes all buffs that are due at the given tick. Called by the expiry wheel
+     * when the earliest deadline of this data is reached.
+     *
+     * @param now    current tick of the expiry wheel
+     * @param budget maximum number of buffs to expire
+     * @return the number of buffs expired
+     */
+    int expire(final long now, final int budget) {
+        final LivingEntity entity = this.entity.get();
+        if (entity != null && entity.isDead()) {
+            clear();
+            return 0;
+        } else if (entity == null || !entity.isValid()) {
+            detach(false);
+            return 0;
+        }
+
+        final List<Buff>    expired = new ArrayList<>();
+        final List<BuffKey> types   = new ArrayList<>();
+        synchronized (this) {
+            if (detached) return 0;
+            locateLater();
+            collectExpired(now, budget, expired, types);
+        }
+
+        final BuffManager manager = BuffManager.getInstance();
+        for (int i = 0; i < expired.size(); i++) {
+            manager.expired(entity, types.get(i), expired.get(i));
+        }
+        final BuffRecorder recorder = manager.getRecorder();
+        if (recorder != null && !expired.isEmpty()) recorder.expired(entityId, expired.size());
+        return expired.size();
+    }
+
+    private void collectExpired(final long now,
+                                final int budget,
+                                final List<Buff> expired,
+                                final List<BuffKey> types) {
+        final BuffSnapshot before = snapshot;
+        final ExpiryFilter filter = new ExpiryFilter(now, budget, expired, types);
+        store.removeIf(filter);
+
+        final BuffTypeIndex typeIndex = BuffManager.getInstance().getTypeIndex();
+        final List<String>  keys      = new ArrayList<>(expired.size());
+        for (int i = 0; i < expired.size(); i++) {
+            final BuffKey type = types.get(i);
+            changed(type, BuffChange.Kind.EXPIRED, 1, before);
+            if (types.indexOf(type) == i) {
+                updateSnapshot(type);
+                if (!store.hasType(type)) typeIndex.removeType(type, this);
             }
+            keys.add(expired.get(i).getKey());
+        }
+        unindex(keys);
 
-            final Map<String, Buff> typeBuffs = buffs.get(type);
-            typeBuffs.remove(key);
+        final BuffExpiryWheel wheel = BuffManager.getInstance().getExpiryWheel();
+        if (filter.pending) {
+            wheel.defer(expiry);
+        } else if (store.size() == 0) {
             // Clean up buff data if the entity doesn't hold onto any buffs
-            if (typeBuffs.isEmpty()) {
-                buffs.remove(type);
-                if (buffs.isEmpty()) {
-                    BuffManager.clearData(entity);
-                }
+            detach(false);
+        } else {
+            wheel.reschedule(expiry, filter.next);
+        }
+    }
+
+    /**
+     * Removes the buffs that are due, up to the expiry budget, and tracks
+     * the earliest deadline of the remaining buffs
+     */
+    private static class ExpiryFilter implements BuffStore.Filter {
+        private final long          now;
+        private final int           budget;
+        private final List<Buff>    expired;
+        private final List<BuffKey> types;
+        private final BuffMetrics   metrics = BuffManager.getInstance().getMetrics();
+        private       long          next    = Long.MAX_VALUE;
+        private       boolean       pending;
+
+        ExpiryFilter(final long now, final int budget, final List<Buff> expired, final List<BuffKey> types) {
+            this.now = now;
+            this.budget = budget;
+            this.expired = expired;
+            this.types = types;
+        }
+
+        @Override
+        public boolean remove(final BuffKey type, final Buff buff, final long deadline) {
+            if (deadline > now) {
+                next = Math.min(next, deadline);
+                return false;
+            } else if (expired.size() >= budget) {
+                pending = true;
+                return false;
             }
-            BuffExpiredEvent event = new BuffExpiredEvent(entity, typeBuffs.get(type), this.type);
-            Bukkit.getPluginManager().callEvent(event);
+
+            expired.add(buff);
+            types.add(type);
+            metrics.recordExpiry(type, now - deadline);
+            return true;
         }
     }
 }
@@ -0,0 +1,84 @@
+/**
+ * Fabled
+ * studio.magemonkey.fabled.api.util.BuffDecay
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Copyright (c) 2024 MageMonkeyStudio
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software") to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package studio.magemonkey.fabled.api.util;
+
+/**
+ * The curve of a decaying or ramping buff. Its value is computed from the current tick
+ * whenever buffs are applied, so it changes smoothly without updating the buff. Once the
+ * end is reached the buff no longer has any effect, even before its expiry removes it.
+ */
+final class BuffDecay {
+    private final BuffCurve curve;
+    private final boolean   percent;
+    private final double    from;
+    private final double    to;
+    private final long      start;
+    private final long      end;
+
+    BuffDecay(final BuffCurve curve,
+              final boolean percent,
+              final double from,
+              final double to,
+              final long start,
+              final long end) {
+        this.curve = curve;
+        this.percent = percent;
+        this.from = from;
+        this.to = to;
+        this.start = start;
+        this.end = end;
+    }
+
+    boolean isPercent() {
+        return percent;
+    }
+
+    long getStart() {
+        return start;
+    }
+
+    /**
+     * @param tick current tick of the expiry wheel
+     * @return the value of the buff at the tick
+     */
+    double valueAt(final long tick) {
+        if (tick >= end) return percent ? 1 : 0;
+        if (tick <= start) return from;
+
+        final double progress = (double) (tick - start) / (end - start);
+        return from + (to - from) * curve.apply(progress);
+    }
+
+    /**
+     * @param start first tick of the curve
+     * @param end   tick the curve ends at
+     * @return the same curve over a different duration
+     */
+    BuffDecay between(final long start, final long end) {
+        return new BuffDecay(curve, percent, from, to, start, end);
+    }
+}
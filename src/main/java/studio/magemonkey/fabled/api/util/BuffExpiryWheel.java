@@ -0,0 +1,255 @@
+/**
+ * Fabled
+ * studio.magemonkey.fabled.api.util.BuffExpiryWheel
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Copyright (c) 2024 MageMonkeyStudio
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software") to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package studio.magemonkey.fabled.api.util;
+
+import java.util.Collection;
+
+/**
+ * Hierarchical timing wheel used to expire buffs. Each {@link BuffData} owns a single
+ * node that is scheduled for the earliest deadline of its buffs, so the server scheduler
+ * only ever sees the one repeating task that drives {@link #tick()}.
+ * <p>
+ * The wheel has four levels of 64 slots each. Level 0 holds deadlines within the current
+ * 64 tick window, every further level covers a 64 times larger window and is cascaded
+ * into the lower levels when its slot comes up. Deadlines beyond the last level are kept
+ * in an overflow list that is re-sorted once per full rotation.
+ * <p>
+ * All operations lock the wheel. While ticking, the wheel calls into {@link BuffData}
+ * which locks the data, so data must never call into the wheel while holding its own lock
+ * from any other thread. Expired buffs are only collected while ticking, their events are
+ * called by the {@link BuffManager} once the wheel was released again.
+ */
+final class BuffExpiryWheel {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS     = 1 << SLOT_BITS;
+    private static final int MASK      = SLOTS - 1;
+    private static final int LEVELS    = 4;
+
+    private static final int OVERFLOW = LEVELS * SLOTS;
+    private static final int BACKLOG  = OVERFLOW + 1;
+
+    private final Node[] heads = new Node[BACKLOG + 1];
+
+    private volatile long tick;
+    private volatile int  budget = Integer.MAX_VALUE;
+
+    /**
+     * @return the number of ticks the wheel has advanced
+     */
+    long currentTick() {
+        return tick;
+    }
+
+    /**
+     * @return the maximum number of buffs expired per tick
+     */
+    int getBudget() {
+        return budget;
+    }
+
+    /**
+     * Limits how many buffs may expire within a single tick. Buffs over the limit are
+     * expired on the following ticks, oldest first.
+     *
+     * @param budget maximum buffs per tick, at least 1
+     */
+    void setBudget(final int budget) {
+        this.budget = Math.max(1, budget);
+    }
+
+    /**
+     * Schedules the node for the given deadline. A node that is already scheduled
+     * is only moved if the new deadline is earlier.
+     *
+     * @param node     node to schedule
+     * @param deadline tick to expire at
+     */
+    synchronized void schedule(final Node node, final long deadline) {
+        if (node.bucket >= 0) {
+            if (node.deadline <= deadline) return;
+            unlink(node);
+        }
+        node.deadline = Math.max(deadline, tick + 1);
+        place(node);
+    }
+
+    /**
+     * Moves the node to the given deadline, even if that is later than its current one
+     *
+     * @param node     node to schedule
+     * @param deadline tick to expire at
+     */
+    synchronized void reschedule(final Node node, final long deadline) {
+        if (node.bucket >= 0) unlink(node);
+        node.deadline = Math.max(deadline, tick + 1);
+        place(node);
+    }
+
+    /**
+     * Removes the node from the wheel if it is scheduled
+     *
+     * @param node node to cancel
+     */
+    synchronized void cancel(final Node node) {
+        if (node.bucket >= 0) unlink(node);
+    }
+
+    /**
+     * Removes all of the nodes from the wheel with a single lock acquisition
+     *
+     * @param nodes nodes to cancel
+     */
+    synchronized void cancel(final Collection<Node> nodes) {
+        for (final Node node : nodes) {
+            if (node.bucket >= 0) unlink(node);
+        }
+    }
+
+    /**
+     * Advances the wheel by one tick and expires all due buffs within the budget
+     */
+    synchronized void tick() {
+        tick++;
+
+        // Cascade higher levels whose window starts with this tick, highest first
+        for (int level = LEVELS - 1; level > 0; level--) {
+            final int shift = level * SLOT_BITS;
+            if ((tick & ((1L << shift) - 1)) == 0) {
+                cascade(level * SLOTS + (int) ((tick >>> shift) & MASK));
+            }
+        }
+        if ((tick & ((1L << (LEVELS * SLOT_BITS)) - 1)) == 0) {
+            cascade(OVERFLOW);
+        }
+
+        int remaining = budget;
+        remaining = expire(BACKLOG, remaining);
+        expire((int) (tick & MASK), remaining);
+    }
+
+    private int expire(final int bucket, int remaining) {
+        Node node;
+        while (remaining > 0 && (node = heads[bucket]) != null) {
+            unlink(node);
+            if (node.deadline > tick) {
+                place(node);
+            } else {
+                remaining -= node.owner.expire(tick, remaining);
+            }
+        }
+
+        // Out of budget, everything left waits for the next tick
+        if (bucket != BACKLOG) {
+            while ((node = heads[bucket]) != null) {
+                unlink(node);
+                link(node, BACKLOG);
+            }
+        }
+        return remaining;
+    }
+
+    /**
+     * Queues a node that still has due buffs after the budget of this tick ran out
+     *
+     * @param node node to defer
+     */
+    synchronized void defer(final Node node) {
+        if (node.bucket >= 0) unlink(node);
+        link(node, BACKLOG);
+    }
+
+    private void cascade(final int bucket) {
+        Node node = heads[bucket];
+        heads[bucket] = null;
+        while (node != null) {
+            final Node next = node.next;
+            node.prev = node.next = null;
+            node.bucket = -1;
+            place(node);
+            node = next;
+        }
+    }
+
+    private void place(final Node node) {
+        final long deadline = node.deadline;
+        for (int level = 0; level < LEVELS; level++) {
+            final int shift = (level + 1) * SLOT_BITS;
+            if ((deadline >>> shift) == (tick >>> shift)) {
+                link(node, level * SLOTS + (int) ((deadline >>> (level * SLOT_BITS)) & MASK));
+                return;
+            }
+        }
+        link(node, OVERFLOW);
+    }
+
+    private void link(final Node node, final int bucket) {
+        final Node head = heads[bucket];
+        node.prev = null;
+        node.next = head;
+        if (head != null) head.prev = node;
+        heads[bucket] = node;
+        node.bucket = bucket;
+    }
+
+    private void unlink(final Node node) {
+        if (node.prev != null) node.prev.next = node.next;
+        else heads[node.bucket] = node.next;
+        if (node.next != null) node.next.prev = node.prev;
+        node.prev = node.next = null;
+        node.bucket = -1;
+    }
+
+    /**
+     * Wheel entry of a single {@link BuffData}
+     */
+    static final class Node {
+        private final BuffData owner;
+
+        private Node prev;
+        private Node next;
+        private long deadline;
+        private int  bucket = -1;
+
+        Node(final BuffData owner) {
+            this.owner = owner;
+        }
+
+        /**
+         * @return true if the node is currently scheduled
+         */
+        boolean isScheduled() {
+            return bucket >= 0;
+        }
+
+        /**
+         * @return the tick the node is scheduled for
+         */
+        long getDeadline() {
+            return deadline;
+        }
+    }
+}
@@ -0,0 +1,350 @@
+/**
+ * Fabled
+ * studio.magemonkey.fabled.api.util.BuffIndex
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Copyright (c) 2024 MageMonkeyStudio
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software") to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package studio.magemonkey.fabled.api.util;
+
+import org.bukkit.entity.LivingEntity;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Open addressing index from entity UUID to {@link BuffData}. Keys are stored as the two
+ * longs of the UUID in primitive arrays, so a lookup is a single linear probe without
+ * hashing UUID objects or allocating entries.
+ * <p>
+ * The index is split into lock striped segments. Reads are optimistic and only fall back
+ * to a read lock when a write to the same segment raced with them.
+ */
+final class BuffIndex {
+    private static final int SEGMENT_BITS     = 4;
+    private static final int SEGMENTS         = 1 << SEGMENT_BITS;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    BuffIndex() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    /**
+     * @param id entity UUID
+     * @return the data of the entity or null if it has none
+     */
+    BuffData get(final UUID id) {
+        final long msb  = id.getMostSignificantBits();
+        final long lsb  = id.getLeastSignificantBits();
+        final int  hash = hash(msb, lsb);
+
+        final Segment segment = segments[hash & (SEGMENTS - 1)];
+        long          stamp   = segment.tryOptimisticRead();
+        BuffData      result  = segment.find(msb, lsb, hash);
+        if (!segment.validate(stamp)) {
+            stamp = segment.readLock();
+            try {
+                result = segment.find(msb, lsb, hash);
+            } finally {
+                segment.unlockRead(stamp);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Retrieves the data of the entity, creating it if it doesn't exist yet
+     *
+     * @param entity entity to get the data for
+     * @return the data of the entity
+     */
+    BuffData getOrCreate(final LivingEntity entity) {
+        final UUID     id       = entity.getUniqueId();
+        final BuffData existing = get(id);
+        if (existing != null) return existing;
+
+        final long    msb     = id.getMostSignificantBits();
+        final long    lsb     = id.getLeastSignificantBits();
+        final int     hash    = hash(msb, lsb);
+        final Segment segment = segments[hash & (SEGMENTS - 1)];
+        final long    stamp   = segment.writeLock();
+        try {
+            return segment.getOrCreate(msb, lsb, hash, entity);
+        } finally {
+            segment.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes the data of the entity
+     *
+     * @param id       entity UUID
+     * @param expected data to remove, or null to remove whatever is registered
+     * @return the removed data or null if nothing was removed
+     */
+    BuffData remove(final UUID id, final BuffData expected) {
+        final long    msb     = id.getMostSignificantBits();
+        final long    lsb     = id.getLeastSignificantBits();
+        final int     hash    = hash(msb, lsb);
+        final Segment segment = segments[hash & (SEGMENTS - 1)];
+        final long    stamp   = segment.writeLock();
+        try {
+            return segment.remove(msb, lsb, hash, expected);
+        } finally {
+            segment.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @return the number of entities with buff data
+     */
+    int size() {
+        int size = 0;
+        for (final Segment segment : segments) {
+            final long stamp = segment.readLock();
+            try {
+                size += segment.size;
+            } finally {
+                segment.unlockRead(stamp);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * @return a copy of all registered data
+     */
+    List<BuffData> values() {
+        final List<BuffData> result = new ArrayList<>();
+        for (final Segment segment : segments) {
+            final long stamp = segment.readLock();
+            try {
+                for (final BuffData data : segment.table.values) {
+                    if (data != null) result.add(data);
+                }
+            } finally {
+                segment.unlockRead(stamp);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Creates a map view of the index for callers that used to work on a plain map. Removing
+     * an entity through the view clears its buffs, adding entries isn't supported.
+     *
+     * @return a map view of the index
+     */
+    Map<UUID, BuffData> asMap() {
+        return new AbstractMap<UUID, BuffData>() {
+            @Override
+            public BuffData get(final Object key) {
+                return key instanceof UUID ? BuffIndex.this.get((UUID) key) : null;
+            }
+
+            @Override
+            public BuffData remove(final Object key) {
+                return key instanceof UUID ? clear((UUID) key) : null;
+            }
+
+            @Override
+            public boolean containsKey(final Object key) {
+                return get(key) != null;
+            }
+
+            @Override
+            public int size() {
+                return BuffIndex.this.size();
+            }
+
+            @Override
+            public Set<Entry<UUID, BuffData>> entrySet() {
+                return new AbstractSet<Entry<UUID, BuffData>>() {
+                    @Override
+                    public Iterator<Entry<UUID, BuffData>> iterator() {
+                        final Iterator<BuffData> values = values().iterator();
+                        return new Iterator<Entry<UUID, BuffData>>() {
+                            private BuffData last;
+
+                            @Override
+                            public boolean hasNext() {
+                                return values.hasNext();
+                            }
+
+                            @Override
+                            public Entry<UUID, BuffData> next() {
+                                last = values.next();
+                                return new SimpleImmutableEntry<>(last.getEntityId(), last);
+                            }
+
+                            @Override
+                            public void remove() {
+                                if (last == null) throw new IllegalStateException();
+                                clear(last.getEntityId());
+                                last = null;
+                            }
+                        };
+                    }
+
+                    @Override
+                    public int size() {
+                        return BuffIndex.this.size();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Removes the data of the entity and clears its buffs
+     *
+     * @param id entity UUID
+     * @return the removed data or null if the entity had none
+     */
+    private BuffData clear(final UUID id) {
+        final BuffData data = remove(id, null);
+        if (data != null) data.clear();
+        return data;
+    }
+
+    private static int hash(final long msb, final long lsb) {
+        long h = msb ^ lsb;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    private static final class Segment extends StampedLock {
+        private Table table = new Table(INITIAL_CAPACITY);
+        private int   size;
+
+        private BuffData find(final long msb, final long lsb, final int hash) {
+            // The table may be swapped by a racing writer, so only read it once
+            final Table table = this.table;
+            final int   mask  = table.mask;
+            int         slot  = (hash >>> SEGMENT_BITS) & mask;
+            for (int probes = 0; probes <= mask; probes++) {
+                final BuffData data = table.values[slot];
+                if (data == null) return null;
+                if (table.msbs[slot] == msb && table.lsbs[slot] == lsb) return data;
+                slot = (slot + 1) & mask;
+            }
+            return null;
+        }
+
+        private BuffData getOrCreate(final long msb, final long lsb, final int hash, final LivingEntity entity) {
+            int slot = (hash >>> SEGMENT_BITS) & table.mask;
+            while (table.values[slot] != null) {
+                if (table.msbs[slot] == msb && table.lsbs[slot] == lsb) return table.values[slot];
+                slot = (slot + 1) & table.mask;
+            }
+
+            final BuffData data = new BuffData(entity);
+            table.msbs[slot] = msb;
+            table.lsbs[slot] = lsb;
+            table.values[slot] = data;
+            if (++size * 2 > table.values.length) resize();
+            return data;
+        }
+
+        private BuffData remove(final long msb, final long lsb, final int hash, final BuffData expected) {
+            final int mask = table.mask;
+            int       slot = (hash >>> SEGMENT_BITS) & mask;
+            while (table.values[slot] != null) {
+                if (table.msbs[slot] == msb && table.lsbs[slot] == lsb) {
+                    final BuffData data = table.values[slot];
+                    if (expected != null && expected != data) return null;
+                    deleteSlot(slot);
+                    size--;
+                    return data;
+                }
+                slot = (slot + 1) & mask;
+            }
+            return null;
+        }
+
+        /**
+         * Removes a slot with backward shift deletion so probe chains stay intact
+         */
+        private void deleteSlot(int slot) {
+            final int mask = table.mask;
+            int       next = slot;
+            while (true) {
+                next = (next + 1) & mask;
+                final BuffData data = table.values[next];
+                if (data == null) break;
+
+                final int home = (hash(table.msbs[next], table.lsbs[next]) >>> SEGMENT_BITS) & mask;
+                // Move the entry back if its home slot isn't between the gap and its position
+                if (slot <= next ? (home <= slot || home > next) : (home <= slot && home > next)) {
+                    table.msbs[slot] = table.msbs[next];
+                    table.lsbs[slot] = table.lsbs[next];
+                    table.values[slot] = data;
+                    slot = next;
+                }
+            }
+            table.values[slot] = null;
+        }
+
+        private void resize() {
+            final Table old   = table;
+            final Table grown = new Table(old.values.length * 2);
+            for (int i = 0; i < old.values.length; i++) {
+                final BuffData data = old.values[i];
+                if (data == null) continue;
+
+                int slot = (hash(old.msbs[i], old.lsbs[i]) >>> SEGMENT_BITS) & grown.mask;
+                while (grown.values[slot] != null) slot = (slot + 1) & grown.mask;
+                grown.msbs[slot] = old.msbs[i];
+                grown.lsbs[slot] = old.lsbs[i];
+                grown.values[slot] = data;
+            }
+            table = grown;
+        }
+    }
+
+    private static final class Table {
+        private final long[]     msbs;
+        private final long[]     lsbs;
+        private final BuffData[] values;
+        private final int        mask;
+
+        private Table(final int capacity) {
+            this.msbs = new long[capacity];
+            this.lsbs = new long[capacity];
+            this.values = new BuffData[capacity];
+            this.mask = capacity - 1;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/**
+ * Fabled
+ * studio.magemonkey.fabled.api.util.BuffKey
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Copyright (c) 2024 MageMonkeyStudio
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software") to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package studio.magemonkey.fabled.api.util;
+
+import lombok.Getter;
+import studio.magemonkey.fabled.log.LogType;
+import studio.magemonkey.fabled.log.Logger;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An interned handle for a buff type key, optionally narrowed by a category
+ * (e.g. FABLED_skill_damage_fire). Keys are resolved once and compared by identity,
+ * so callers can hold on to them instead of building key strings for every lookup.
+ * <p>
+ * Keys form a trie of categories. Categories can be nested any number of levels by
+ * separating them with a dot (e.g. fire.aoe resolves to FABLED_skill_damage_fire.aoe),
+ * and buffs of every level above a key apply to it as well. Only keys created from a type
+ * and a category are linked to their parents. A full name is taken as is, so a custom type
+ * like DAMAGE_bonus or my.type doesn't inherit from an unrelated type that happens to be a
+ * prefix of it. A key first created from its full name is linked once it is looked up by
+ * type and category.
+ */
+public final class BuffKey {
+    private static final Map<String, BuffKey> KEYS     = new ConcurrentHashMap<>();
+    private static final Map<String, BuffKey> RESOLVED = new ConcurrentHashMap<>();
+    private static final AtomicInteger        NEXT_ID  = new AtomicInteger();
+
+    /**
+     * The full key name, as used by the string based buff methods
+     */
+    @Getter
+    private final String name;
+    /**
+     * A unique, dense id of the key
+     */
+    @Getter
+    private final int    id;
+
+    private volatile BuffKey parent;
+
+    private final Map<String, BuffKey> children = new ConcurrentHashMap<>();
+
+    private BuffKey(final String name, final BuffKey parent) {
+        this.name = name;
+        this.id = NEXT_ID.getAndIncrement();
+        this.parent = parent;
+    }
+
+    /**
+     * @return the type this key is a category of, or null if it is a base type
+     */
+    public BuffKey getParent() {
+        return parent;
+    }
+
+    /**
+     * Retrieves the key of a direct sub category, creating it if needed
+     *
+     * @param category single level category, without dots
+     * @return the interned key
+     */
+    public BuffKey child(final String category) {
+        final BuffKey cached = children.get(category);
+        if (cached != null) return cached;
+
+        // The first level keeps the legacy type_category names, deeper levels are separated by dots
+        final BuffKey key = intern(name + (parent == null ? "_" : ".") + category, this);
+        if (key.parent == null && key != this) {
+            // The key was created from its full name, so published totals miss this level
+            key.parent = this;
+            BuffManager.getInstance().relinked(key);
+        }
+        children.putIfAbsent(category, key);
+        return key;
+    }
+
+    /**
+     * Retrieves the key for the given full type name, creating it if needed. The name is
+     * not split into a type and categories, use {@link #of(String, String)} for keys that
+     * should inherit the buffs of their type.
+     *
+     * @param name full type name
+     * @return the interned key
+     */
+    public static BuffKey of(final String name) {
+        final BuffKey key = KEYS.get(name);
+        return key != null ? key : intern(name, null);
+    }
+
+    /**
+     * Retrieves a key by a full name that was stored earlier, e.g. by persistence or sync.
+     * Names of known buff types resolve like {@link #resolve(String)}, so their categories
+     * are linked to the type, anything else is taken as is.
+     *
+     * @param name full type name
+     * @return the interned key
+     */
+    static BuffKey restore(final String name) {
+        final BuffKey key = resolve(name);
+        return key != null ? key : of(name);
+    }
+
+    /**
+     * Creates a key with its parent already linked, as snapshots aggregate along the
+     * parent links when they are published
+     */
+    private static BuffKey intern(final String name, final BuffKey parent) {
+        return KEYS.computeIfAbsent(name, key -> new BuffKey(key, parent));
+    }
+
+    /**
+     * Retrieves the key for a sub category of the given type, creating it if needed.
+     * A null or empty category results in the key of the type itself.
+     *
+     * @param type     full type name
+     * @param category sub category of the type (e.g. damage classification), nested levels are separated by dots
+     * @return the interned key
+     */
+    public static BuffKey of(final String type, final String category) {
+        BuffKey key = of(type);
+        if (category == null || category.isEmpty()) return key;
+
+        int start = 0;
+        while (start <= category.length()) {
+            int end = category.indexOf('.', start);
+            if (end < 0) end = category.length();
+            if (end > start) key = key.child(category.substring(start, end));
+            start = end + 1;
+        }
+        return key;
+    }
+
+    /**
+     * Retrieves the key for the given buff type
+     *
+     * @param type buff type
+     * @return the interned key
+     */
+    public static BuffKey of(final BuffType type) {
+        return of(type.getLocalizedName());
+    }
+
+    /**
+     * Retrieves the key for a sub category of the given buff type
+     *
+     * @param type     buff type
+     * @param category sub category of the type (e.g. damage classification)
+     * @return the interned key
+     */
+    public static BuffKey of(final BuffType type, final String category) {
+        return of(type.getLocalizedName(), category);
+    }
+
+    /**
+     * Looks up an existing key without creating one
+     *
+     * @param name full type name
+     * @return the interned key or null if no buff was ever registered under the name
+     */
+    public static BuffKey find(final String name) {
+        return KEYS.get(name);
+    }
+
+    /**
+     * Resolves a name as passed to {@link BuffManager#scaleValue(String, org.bukkit.entity.LivingEntity, double)}.
+     * This accepts the name of a {@link BuffType} as well as the custom skill damage and
+     * defense categories (e.g. FABLED_skill_damage_&lt;classification&gt;). Results are cached,
+     * so the name is only parsed once.
+     *
+     * @param name name of the buff type
+     * @return the resolved key or null if the name is not a known buff type
+     */
+    public static BuffKey resolve(final String name) {
+        final BuffKey cached = RESOLVED.get(name);
+        if (cached != null) return cached;
+
+        final BuffKey key = parse(name);
+        if (key != null) RESOLVED.put(name, key);
+        return key;
+    }
+
+    private static BuffKey parse(final String name) {
+        final BuffType type = BuffType.getByNameOrLocal(name);
+        if (type != null) return of(type);
+
+        for (final BuffType base : new BuffType[]{BuffType.SKILL_DAMAGE, BuffType.SKILL_DEFENSE}) {
+            final String prefix = base.getLocalizedName() + "_";
+            if (name.startsWith(prefix)) {
+                final String category = name.substring(prefix.length());
+                Logger.log(LogType.BUFF, 1, "Parsed custom type: " + name + " as type: "
+                        + base.getLocalizedName() + ", category: " + category);
+                return of(base, category);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * Fabled
+ * studio.magemonkey.fabled.api.util.BuffListener
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Copyright (c) 2024 MageMonkeyStudio
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software") to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package studio.magemonkey.fabled.api.util;
+
+import org.bukkit.entity.Entity;
+import org.bukkit.entity.LivingEntity;
+import org.bukkit.entity.Player;
+import org.bukkit.event.EventHandler;
+import org.bukkit.event.EventPriority;
+import org.bukkit.event.Listener;
+import org.bukkit.event.entity.EntityDeathEvent;
+import org.bukkit.event.entity.EntityTeleportEvent;
+import org.bukkit.event.player.PlayerChangedWorldEvent;
+import org.bukkit.event.player.PlayerJoinEvent;
+import org.bukkit.event.player.PlayerQuitEvent;
+import org.bukkit.event.player.PlayerTeleportEvent;
+import org.bukkit.event.world.ChunkUnloadEvent;
+import org.bukkit.event.world.WorldUnloadEvent;
+
+import java.util.Arrays;
+
+/**
+ * Drops buff data as soon as its entity dies or leaves the server instead
+ * of waiting for the next expiry to notice the entity is gone, moves buff data
+ * along with teleporting entities, and hands joining and quitting players to
+ * buff sync if it is enabled
+ */
+class BuffListener implements Listener {
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onDeath(final EntityDeathEvent event) {
+        // Players respawn as the same entity, so their buffs are cleared rather than unloaded
+        BuffManager.clearData(event.getEntity());
+    }
+
+    @EventHandler(priority = EventPriority.LOWEST)
+    public void onJoin(final PlayerJoinEvent event) {
+        BuffManager.getInstance().playerJoined(event.getPlayer());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onQuit(final PlayerQuitEvent event) {
+        BuffManager.getInstance().playerQuit(event.getPlayer().getUniqueId());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onTeleport(final PlayerTeleportEvent event) {
+        if (event.getTo() != null) BuffManager.getInstance().relocate(event.getPlayer(), event.getTo());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChangedWorld(final PlayerChangedWorldEvent event) {
+        BuffManager.getInstance().relocate(event.getPlayer(), event.getPlayer().getLocation());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onEntityTeleport(final EntityTeleportEvent event) {
+        if (event.getEntity() instanceof LivingEntity && event.getTo() != null) {
+            BuffManager.getInstance().relocate((LivingEntity) event.getEntity(), event.getTo());
+        }
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    public void onWorldUnload(final WorldUnloadEvent event) {
+        BuffManager.getInstance().unloadWorld(event.getWorld());
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    public void onChunkUnload(final ChunkUnloadEvent event) {
+        // Empty on servers unloading entities separately, those are handled by BuffEntitiesListener
+        unload(Arrays.asList(event.getChunk().getEntities()));
+    }
+
+    /**
+     * Drops the buffs of unloaded mobs. Players only unload when they quit.
+     *
+     * @param entities unloaded entities
+     */
+    static void unload(final Iterable<? extends Entity> entities) {
+        final BuffManager manager = BuffManager.getInstance();
+        for (final Entity entity : entities) {
+            if (entity instanceof LivingEntity && !(entity instanceof Player)) {
+                manager.unloadData(entity.getUniqueId());
+            }
+        }
+    }
+}
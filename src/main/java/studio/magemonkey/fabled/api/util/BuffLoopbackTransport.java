@@ -0,0 +1,82 @@
+/**
+ * Fabled
+ * studio.magemonkey.fabled.api.util.BuffLoopbackTransport
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Copyright (c) 2024 MageMonkeyStudio
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software") to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package studio.magemonkey.fabled.api.util;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * In-process transport that delivers messages directly to the receivers of every
+ * transport on the same bus. This allows running buff sync without a broker, e.g.
+ * to check the encoding or to simulate several servers within one process through
+ * {@link #connect()}. Messages are delivered on the sending thread.
+ */
+public final class BuffLoopbackTransport implements BuffTransport {
+    private final    List<BuffLoopbackTransport> bus;
+    private volatile Consumer<byte[]>            receiver;
+
+    /**
+     * Creates a transport on a new bus
+     */
+    public BuffLoopbackTransport() {
+        this(new CopyOnWriteArrayList<>());
+    }
+
+    private BuffLoopbackTransport(final List<BuffLoopbackTransport> bus) {
+        this.bus = bus;
+        bus.add(this);
+    }
+
+    /**
+     * Creates another transport on the same bus, which receives the messages of this transport
+     * and the other way around
+     *
+     * @return the connected transport
+     */
+    public BuffLoopbackTransport connect() {
+        return new BuffLoopbackTransport(bus);
+    }
+
+    @Override
+    public void send(final byte[] message) {
+        for (final BuffLoopbackTransport transport : bus) {
+            final Consumer<byte[]> target = transport.receiver;
+            if (target != null) target.accept(message);
+        }
+    }
+
+    @Override
+    public void setReceiver(final Consumer<byte[]> receiver) {
+        this.receiver = receiver;
+    }
+
+    @Override
+    public void close() {
+        bus.remove(this);
+    }
+}
@@ -26,33 +26,825 @@
  */
 package studio.magemonkey.fabled.api.util;
 
-import lombok.Getter;
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.World;
 import org.bukkit.entity.LivingEntity;
 import org.bukkit.entity.Player;
+import org.bukkit.event.Event;
+import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scheduler.BukkitRunnable;
+import org.bukkit.scheduler.BukkitTask;
 import studio.magemonkey.codex.registry.BuffRegistry;
 import studio.magemonkey.codex.registry.provider.BuffProvider;
+import studio.magemonkey.fabled.Fabled;
+import studio.magemonkey.fabled.api.event.BuffExpiredEvent;
+import studio.magemonkey.fabled.api.event.BuffsExpiredEvent;
 import studio.magemonkey.fabled.log.LogType;
 import studio.magemonkey.fabled.log.Logger;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * The manager for temporary entity buff data
  */
-@Getter
 public class BuffManager implements BuffProvider {
-    private static BuffManager         instance;
-    private final  Map<UUID, BuffData> data = new HashMap<>();
+    private static final int             LEAK_CHECK_TICKS = 1200;
+    private static final String          BUFF_LOG_PATH    = "Logging.buff";
+    private static final BuffManager     instance         = new BuffManager();
+    private final        BuffIndex       index            = new BuffIndex();
+    private final        BuffTypeIndex   typeIndex        = new BuffTypeIndex();
+    private final        BuffPartitions  partitions       = new BuffPartitions();
+    private final        Queue<BuffData> unlocated        = new ConcurrentLinkedQueue<>();
+    private final        BuffExpiryWheel expiryWheel      = new BuffExpiryWheel();
+    private volatile     BukkitTask      expiryTask;
+    private volatile     boolean         manualTicking;
+    private volatile     boolean         enabled;
+    private volatile     boolean         enabling;
+
+    private final    Map<UUID, BuffTracer> tracers = new ConcurrentHashMap<>();
+    private volatile BuffTracer            tracer;
+    private volatile boolean               tracerSet;
+
+    private final    Map<UUID, List<RestoredBuff>> restoring = new ConcurrentHashMap<>();
+    private volatile boolean                       restorePending;
+    private volatile BuffPersistence               persistence;
+    private volatile BuffSync                      sync;
+    private volatile BuffRecorder                  recorder;
+
+    private final BuffMetrics metrics = new BuffMetrics(this);
+
+    private volatile boolean leakDetection;
+
+    // Expired buffs of the current tick, only touched by the thread driving the wheel
+    private volatile boolean                                    batchedExpiry;
+    private          Map<LivingEntity, Map<String, List<Buff>>> expiredBatch = new LinkedHashMap<>();
+    private          int                                        expiredCount;
+    private          List<Expired>                              expiredQueue = new ArrayList<>();
+
+    private final List<BuffChangeListener>            listeners       = new CopyOnWriteArrayList<>();
+    private final Map<UUID, List<BuffChangeListener>> entityListeners = new ConcurrentHashMap<>();
+    private final Map<UUID, Map<BuffKey, BuffChange>> changes         = new LinkedHashMap<>();
 
     public static BuffManager getInstance() {
-        if (instance == null) {
-            instance = new BuffManager();
-        }
         return instance;
     }
 
+    /**
+     * Retrieves the metrics of the buff subsystem. They are always collected,
+     * use {@link BuffMetrics#registerMBean()} to expose them through JMX.
+     *
+     * @return the buff metrics
+     */
+    public BuffMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Retrieves a map view of the buff data of every entity. Removing an entity from the
+     * view clears its buffs like {@link #clearData(LivingEntity)}, adding data to it isn't
+     * supported as data is created through {@link #getBuffData(LivingEntity)}.
+     *
+     * @return a view of the buff data of every entity
+     * @deprecated buff data is no longer stored in a plain map, use {@link #getBuffData(LivingEntity, boolean)},
+     * {@link #clearData(LivingEntity)} and {@link #getTrackedEntities()} instead
+     */
+    @Deprecated
+    public Map<UUID, BuffData> getData() {
+        return index.asMap();
+    }
+
+    /**
+     * @return the number of entities with buff data
+     */
+    public int getTrackedEntities() {
+        return index.size();
+    }
+
+    /**
+     * @param entity entity UUID
+     * @return the data of the entity or null if it has none
+     */
+    BuffData getLoadedData(final UUID entity) {
+        return index.get(entity);
+    }
+
+    /**
+     * Retrieves the wheel expiring buffs. If the plugin didn't call {@link #enable(JavaPlugin)},
+     * enabling is scheduled for the next tick on the main thread instead.
+     *
+     * @return the expiry wheel
+     */
+    BuffExpiryWheel getExpiryWheel() {
+        if (!enabled && !enabling && !manualTicking) {
+            enableLater();
+        }
+        return expiryWheel;
+    }
+
+    private synchronized void enableLater() {
+        if (enabled || enabling || manualTicking || Bukkit.getServer() == null) return;
+
+        enabling = true;
+        final JavaPlugin plugin = JavaPlugin.getPlugin(Fabled.class);
+        Bukkit.getScheduler().runTask(plugin, () -> enable(plugin));
+    }
+
+    /**
+     * Starts the task expiring buffs and registers the listener dropping the buffs of dead,
+     * quitting and unloaded entities. This should be called when the plugin is enabled,
+     * as registering listeners is only safe on the main thread.
+     *
+     * @param plugin plugin owning the task and listener
+     */
+    public synchronized void enable(final JavaPlugin plugin) {
+        enabling = false;
+        if (enabled) return;
+        enabled = true;
+
+        Bukkit.getPluginManager().registerEvents(new BuffListener(), plugin);
+        if (hasClass("org.bukkit.event.world.EntitiesUnloadEvent")) {
+            Bukkit.getPluginManager().registerEvents(new BuffEntitiesListener(), plugin);
+        }
+
+        // Keep the BUFF log working for servers that enabled it, unless a tracer was chosen explicitly
+        if (!tracerSet && plugin.getConfig().getInt(BUFF_LOG_PATH, 0) > 0) tracer = BuffTracer.LOGGER;
+
+        if (expiryTask == null && !manualTicking) {
+            expiryTask = Fabled.schedule(new ExpiryTask(), 1, 1);
+        }
+    }
+
+    private static boolean hasClass(final String name) {
+        try {
+            Class.forName(name);
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Switches between expiring buffs from the server scheduler and manual ticking.
+     * With manual ticking the owner has to call {@link #tick()} once per game tick,
+     * which allows benchmarks and simulations to drive buffs without a server.
+     *
+     * @param manual true to drive expiry through {@link #tick()}
+     */
+    public synchronized void setManualTicking(final boolean manual) {
+        this.manualTicking = manual;
+        if (manual && expiryTask != null) {
+            expiryTask.cancel();
+            expiryTask = null;
+        } else if (!manual && enabled && expiryTask == null) {
+            expiryTask = Fabled.schedule(new ExpiryTask(), 1, 1);
+        }
+    }
+
+    /**
+     * @return true if expiry is driven through {@link #tick()}
+     */
+    public boolean isManualTicking() {
+        return manualTicking;
+    }
+
+    /**
+     * Advances buff expiry by one tick. This is only meant to be called when
+     * manual ticking is enabled, see {@link #setManualTicking(boolean)}.
+     */
+    public void tick() {
+        if (restorePending) applyRestoredOnline();
+        if (expiryWheel.currentTick() % LEAK_CHECK_TICKS == 0 && !restoring.isEmpty()) pruneRestoring();
+        expiryWheel.tick();
+        flushExpired();
+        locateQueued();
+        flushChanges();
+    }
+
+    /**
+     * Queues data to be moved to the partition of its entity's location on the next tick.
+     * Locations are only read from the thread driving the ticks and never while holding a lock.
+     *
+     * @param buffData data to locate
+     */
+    void locateLater(final BuffData buffData) {
+        unlocated.add(buffData);
+    }
+
+    private void locateQueued() {
+        BuffData buffData;
+        while ((buffData = unlocated.poll()) != null) {
+            buffData.locate();
+        }
+    }
+
+    /**
+     * Switches between calling a {@link BuffExpiredEvent} per expired buff and a single
+     * {@link BuffsExpiredEvent} per tick holding every buff that expired during it
+     *
+     * @param batched true to call one batched event per tick
+     */
+    public void setBatchedExpiryEvents(final boolean batched) {
+        this.batchedExpiry = batched;
+    }
+
+    /**
+     * @return true if expired buffs are reported through one {@link BuffsExpiredEvent} per tick
+     */
+    public boolean isBatchedExpiryEvents() {
+        return batchedExpiry;
+    }
+
+    /**
+     * Reports an expired buff. The buff is held until the expiry wheel finished its
+     * tick and released its lock, so listeners never run while the wheel is locked.
+     * Only called from the thread driving the expiry wheel.
+     *
+     * @param entity entity the buff expired on
+     * @param type   type of the buff
+     * @param buff   expired buff
+     */
+    void expired(final LivingEntity entity, final BuffKey type, final Buff buff) {
+        if (!batchedExpiry) {
+            expiredQueue.add(new Expired(entity, type, buff));
+            return;
+        }
+
+        expiredBatch.computeIfAbsent(entity, e -> new HashMap<>())
+                .computeIfAbsent(type.getName(), t -> new ArrayList<>())
+                .add(buff);
+        expiredCount++;
+    }
+
+    private void flushExpired() {
+        if (!expiredQueue.isEmpty()) {
+            final List<Expired> queue = expiredQueue;
+            expiredQueue = new ArrayList<>();
+            for (final Expired expired : queue) {
+                callEvent(new BuffExpiredEvent(expired.entity, expired.buff, expired.type.getName()));
+            }
+        }
+        if (expiredCount == 0) return;
+
+        final BuffsExpiredEvent event = new BuffsExpiredEvent(expiredBatch, expiredCount);
+        expiredBatch = new LinkedHashMap<>();
+        expiredCount = 0;
+        callEvent(event);
+    }
+
+    /**
+     * Subscribes to the buff changes of every entity. Changes are coalesced per entity
+     * and type and delivered once at the end of each tick.
+     *
+     * @param listener listener to call
+     */
+    public void subscribe(final BuffChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Subscribes to the buff changes of one entity, e.g. for the stat display of a player.
+     * The subscription outlives the buff data of the entity and has to be removed again
+     * through {@link #unsubscribe(UUID, BuffChangeListener)}.
+     *
+     * @param entity   UUID of the entity
+     * @param listener listener to call
+     */
+    public void subscribe(final UUID entity, final BuffChangeListener listener) {
+        entityListeners.computeIfAbsent(entity, e -> new CopyOnWriteArrayList<>()).add(listener);
+    }
+
+    /**
+     * @param listener listener to remove from the changes of every entity
+     */
+    public void unsubscribe(final BuffChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @param entity   UUID of the entity
+     * @param listener listener to remove
+     */
+    public void unsubscribe(final UUID entity, final BuffChangeListener listener) {
+        entityListeners.computeIfPresent(entity, (e, entityList) -> {
+            entityList.remove(listener);
+            return entityList.isEmpty() ? null : entityList;
+        });
+    }
+
+    /**
+     * Checks whether changes of an entity have to be recorded. This doesn't
+     * allocate, so changes cost nothing while nobody is subscribed.
+     *
+     * @param entity UUID of the entity
+     * @return true if anyone listens to the changes of the entity
+     */
+    boolean isObserved(final UUID entity) {
+        return !listeners.isEmpty() || (!entityListeners.isEmpty() && entityListeners.containsKey(entity));
+    }
+
+    /**
+     * Records a change to the buffs of a type, to be delivered at the end of the tick
+     *
+     * @param entity UUID of the entity
+     * @param type   type of the buffs that changed
+     * @param kind   kind of change
+     * @param count  number of buffs changed
+     * @param before snapshot of the entity before the change
+     */
+    void changed(final UUID entity,
+                 final BuffKey type,
+                 final BuffChange.Kind kind,
+                 final int count,
+                 final BuffSnapshot before) {
+        synchronized (changes) {
+            changes.computeIfAbsent(entity, e -> new LinkedHashMap<>())
+                    .computeIfAbsent(type, t -> new BuffChange(entity, type, before))
+                    .record(kind, count);
+        }
+    }
+
+    private void flushChanges() {
+        final Map<UUID, Map<BuffKey, BuffChange>> pending;
+        synchronized (changes) {
+            if (changes.isEmpty()) return;
+            pending = new LinkedHashMap<>(changes);
+            changes.clear();
+        }
+
+        for (final Map.Entry<UUID, Map<BuffKey, BuffChange>> entityChanges : pending.entrySet()) {
+            final BuffData                 data           = index.get(entityChanges.getKey());
+            final BuffSnapshot             after          = data == null ? BuffSnapshot.EMPTY : data.getSnapshot();
+            final LivingEntity             entity         = data == null ? null : data.getEntity();
+            final List<BuffChangeListener> entityListener = entityListeners.get(entityChanges.getKey());
+            for (final BuffChange change : entityChanges.getValue().values()) {
+                change.complete(entity, after);
+                notify(listeners, change);
+                if (entityListener != null) notify(entityListener, change);
+            }
+        }
+    }
+
+    private static void notify(final List<BuffChangeListener> listeners, final BuffChange change) {
+        for (final BuffChangeListener listener : listeners) {
+            try {
+                listener.onChange(change);
+            } catch (Exception e) {
+                Logger.error("Buff change listener " + listener + " failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return the number of ticks buff expiry has advanced
+     */
+    public long getCurrentTick() {
+        return expiryWheel.currentTick();
+    }
+
+    /**
+     * Clears the buffs of every entity
+     */
+    public void clearAll() {
+        for (final BuffData buffData : index.values()) {
+            buffData.clear();
+        }
+    }
+
+    BuffTypeIndex getTypeIndex() {
+        return typeIndex;
+    }
+
+    BuffPartitions getPartitions() {
+        return partitions;
+    }
+
+    /**
+     * @param world world to get the buffed entities of
+     * @return the buff data of every entity in the world
+     */
+    public List<BuffData> getDataInWorld(final World world) {
+        return partitions.get(world.getUID());
+    }
+
+    /**
+     * Retrieves the buff data of the entities in an area, e.g. an arena. This only visits
+     * the regions overlapping the area. Entities are matched by the region they were in the
+     * tick after their buffs last changed or expired, or the one they last teleported to,
+     * so the result can include entities that walked out of the area since and miss ones
+     * that walked in. Freshly buffed entities are only found from the next tick on.
+     *
+     * @param world world of the area
+     * @param minX  lowest x coordinate of the area
+     * @param minZ  lowest z coordinate of the area
+     * @param maxX  highest x coordinate of the area
+     * @param maxZ  highest z coordinate of the area
+     * @return the buff data in the area
+     */
+    public List<BuffData> getDataInArea(final World world,
+                                        final int minX,
+                                        final int minZ,
+                                        final int maxX,
+                                        final int maxZ) {
+        final List<BuffData> result = new ArrayList<>();
+        for (int x = minX >> BuffPartitions.REGION_BITS; x <= maxX >> BuffPartitions.REGION_BITS; x++) {
+            for (int z = minZ >> BuffPartitions.REGION_BITS; z <= maxZ >> BuffPartitions.REGION_BITS; z++) {
+                result.addAll(partitions.get(world.getUID(), BuffPartitions.regionKey(x, z)));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Drops the buffs of every entity in a world at once, e.g. when the world is unloaded.
+     * Entities whose data is filed under the world but that already moved on keep their
+     * buffs. Persisted buffs are kept. Must be called from the main thread.
+     *
+     * @param world world to drop the buffs of
+     */
+    public void unloadWorld(final World world) {
+        evict(partitions.removeWorld(world.getUID()), world.getUID(), null);
+        // Entities that arrived since their data was last located are still filed elsewhere
+        BuffListener.unload(world.getLivingEntities());
+    }
+
+    /**
+     * Drops the buffs of every entity in the region holding the block at once. Regions span
+     * {@value BuffPartitions#REGION_SIZE} blocks along each axis. Entities whose data is filed
+     * under the region but that already moved on keep their buffs. Persisted buffs are kept.
+     * Must be called from the main thread.
+     *
+     * @param world  world of the region
+     * @param blockX x coordinate of a block in the region
+     * @param blockZ z coordinate of a block in the region
+     */
+    public void unloadRegion(final World world, final int blockX, final int blockZ) {
+        final long region = BuffPartitions.region(blockX, blockZ);
+        evict(partitions.removeRegion(world.getUID(), region), world.getUID(), region);
+
+        // Entities that arrived since their data was last located are still filed elsewhere
+        final int chunks = BuffPartitions.REGION_SIZE >> 4;
+        final int chunkX = (blockX >> BuffPartitions.REGION_BITS) * chunks;
+        final int chunkZ = (blockZ >> BuffPartitions.REGION_BITS) * chunks;
+        for (int x = chunkX; x < chunkX + chunks; x++) {
+            for (int z = chunkZ; z < chunkZ + chunks; z++) {
+                if (world.isChunkLoaded(x, z)) BuffListener.unload(Arrays.asList(world.getChunkAt(x, z).getEntities()));
+            }
+        }
+    }
+
+    private void evict(final Collection<BuffData> evicted, final UUID world, final Long region) {
+        if (evicted.isEmpty()) return;
+
+        final List<BuffExpiryWheel.Node> expiries = new ArrayList<>(evicted.size());
+        for (final BuffData buffData : evicted) {
+            if (buffData.rehome(world, region)) continue;
+            buffData.detach(false, false);
+            expiries.add(buffData.getExpiry());
+        }
+        expiryWheel.cancel(expiries);
+    }
+
+    /**
+     * Moves the data of an entity to the partition of the location it is moving to,
+     * e.g. the destination of a teleport. Must be called from the main thread.
+     *
+     * @param entity   moving entity
+     * @param location location the entity is moving to
+     */
+    void relocate(final LivingEntity entity, final Location location) {
+        final BuffData data = peek(entity);
+        if (data != BuffData.EMPTY) data.locate(location);
+    }
+
+    /**
+     * Retrieves the buff data of every entity holding buffs of the exact type. Buffs of
+     * categories of the type are only included when asking for the category itself.
+     * The result is a live view, copy it before changing buffs while iterating.
+     *
+     * @param type resolved buff type
+     * @return read-only view of the data with buffs of the type
+     */
+    public Set<BuffData> getDataWithType(final BuffKey type) {
+        return typeIndex.withType(type);
+    }
+
+    /**
+     * @param type resolved buff type
+     * @return the number of entities holding buffs of the type
+     */
+    public int countWithType(final BuffKey type) {
+        return typeIndex.withType(type).size();
+    }
+
+    /**
+     * Clears the buffs of a type from every entity holding them, e.g. to dispel
+     * all skill damage buffs at the end of an event
+     *
+     * @param type resolved buff type
+     */
+    public void clearByType(final BuffKey type) {
+        for (final BuffData buffData : new ArrayList<>(typeIndex.withType(type))) {
+            buffData.clearByType(type);
+        }
+    }
+
+    /**
+     * Retrieves the buff data of every entity holding a buff with the key, see {@link Buff#getKey()}.
+     * The result is a live view, copy it before changing buffs while iterating.
+     *
+     * @param key key of the buffs
+     * @return read-only view of the data with a buff of the key
+     */
+    public Set<BuffData> getDataWithBuff(final String key) {
+        return typeIndex.withBuff(key);
+    }
+
+    /**
+     * @param key key of the buffs
+     * @return the number of entities holding a buff with the key
+     */
+    public int countWithBuff(final String key) {
+        return typeIndex.withBuff(key).size();
+    }
+
+    /**
+     * Removes the buffs with the key from every entity holding them
+     *
+     * @param key key of the buffs
+     */
+    public void removeBuff(final String key) {
+        for (final BuffData buffData : new ArrayList<>(typeIndex.withBuff(key))) {
+            buffData.removeBuff(key);
+        }
+    }
+
+    /**
+     * Starts persisting the buffs of players to the given file, so they survive
+     * restarts and crashes. Buffs stored in the file are loaded in the background
+     * and applied to each player when they join, or at the next tick for players
+     * that are already online.
+     *
+     * @param file file to store buffs in
+     */
+    public synchronized void enablePersistence(final File file) {
+        if (persistence != null) persistence.close();
+        persistence = new BuffPersistence(this, file);
+        // Restoring relies on the join listener
+        getExpiryWheel();
+    }
+
+    /**
+     * Writes all pending buff changes and stops persisting buffs. This should
+     * be called when the plugin is disabled.
+     */
+    public synchronized void disablePersistence() {
+        if (persistence == null) return;
+        persistence.close();
+        persistence = null;
+    }
+
+    /**
+     * Starts carrying the buffs of players along when they move between servers. Buff
+     * changes of online players are sent through the transport, and players joining this
+     * server get the buffs they had on the server they came from.
+     *
+     * @param transport transport reaching the other servers of the network
+     */
+    public synchronized void enableSync(final BuffTransport transport) {
+        if (sync != null) sync.close();
+        sync = new BuffSync(this, transport);
+
+        // Players already online don't join again, and joins need the listener
+        if (Bukkit.getServer() != null) {
+            for (final Player player : Bukkit.getOnlinePlayers()) {
+                sync.track(player.getUniqueId());
+            }
+        }
+        getExpiryWheel();
+    }
+
+    /**
+     * Sends all pending buff changes and stops syncing buffs. This should
+     * be called when the plugin is disabled.
+     */
+    public synchronized void disableSync() {
+        if (sync == null) return;
+        sync.close();
+        sync = null;
+    }
+
+    BuffSync getSync() {
+        return sync;
+    }
+
+    /**
+     * Starts recording buff operations to a trace file, which the BuffReplay benchmark can replay
+     * headlessly to reproduce the workload. Recording is meant to be enabled temporarily,
+     * e.g. while investigating slow ticks, and costs nothing while it is disabled.
+     *
+     * @param file file to write the trace to, replacing its contents
+     */
+    public synchronized void startRecording(final File file) {
+        if (recorder != null) recorder.close();
+        recorder = new BuffRecorder(file);
+    }
+
+    /**
+     * Writes all recorded operations and stops recording
+     */
+    public synchronized void stopRecording() {
+        if (recorder == null) return;
+        recorder.close();
+        recorder = null;
+    }
+
+    /**
+     * @return the active recorder, or null if operations aren't recorded
+     */
+    BuffRecorder getRecorder() {
+        return recorder;
+    }
+
+    BuffPersistence getPersistence() {
+        return persistence;
+    }
+
+    /**
+     * Stops persisting buffs after the log couldn't be written, so changes
+     * aren't queued for a writer that no longer runs
+     *
+     * @param failed the persistence that failed
+     */
+    synchronized void persistenceFailed(final BuffPersistence failed) {
+        if (persistence == failed) persistence = null;
+    }
+
+    /**
+     * Republishes the snapshots that hold buffs of a key or its categories after the key
+     * was linked to a parent, so their totals include the buffs of the parent
+     *
+     * @param key key that got a parent
+     */
+    void relinked(final BuffKey key) {
+        for (final BuffData buffData : index.values()) {
+            buffData.relink(key);
+        }
+    }
+
+    /**
+     * Queues restored buffs for their players. They are applied when the player joins,
+     * or at the next tick for players that are already online.
+     *
+     * @param buffs restored buffs by entity UUID
+     */
+    void restore(final Map<UUID, List<RestoredBuff>> buffs) {
+        if (buffs.isEmpty()) return;
+        for (final Map.Entry<UUID, List<RestoredBuff>> entry : buffs.entrySet()) {
+            restoring.merge(entry.getKey(), entry.getValue(), (current, added) -> {
+                final List<RestoredBuff> merged = new ArrayList<>(current);
+                merged.addAll(added);
+                return merged;
+            });
+        }
+        restorePending = true;
+    }
+
+    /**
+     * Applies the buffs a player had when they left or before a restart, and those they
+     * had on the server they came from if buffs are synced. This runs before other
+     * plugins handle the join, so the buffs are in place for the first damage event.
+     *
+     * @param player player that joined
+     */
+    void playerJoined(final LivingEntity player) {
+        final BuffSync sync = this.sync;
+        if (sync != null) sync.join(player.getUniqueId());
+        applyRestored(player);
+    }
+
+    /**
+     * Applies restored buffs of players that were already online when they were loaded
+     */
+    private void applyRestoredOnline() {
+        restorePending = false;
+        if (Bukkit.getServer() == null) return;
+
+        for (final UUID id : restoring.keySet()) {
+            final Player player = Bukkit.getPlayer(id);
+            if (player != null) applyRestored(player);
+        }
+    }
+
+    /**
+     * Applies restored buffs to the entity
+     *
+     * @param entity entity to apply the buffs to
+     */
+    private void applyRestored(final LivingEntity entity) {
+        final List<RestoredBuff> buffs = restoring.remove(entity.getUniqueId());
+        if (buffs == null) return;
+
+        final long     now  = getCurrentTick();
+        final BuffData data = index.getOrCreate(entity);
+        for (final RestoredBuff restored : buffs) {
+            final long ticks = restored.deadline - now;
+            if (ticks <= 0) continue;
+
+            final BuffKey type = BuffKey.restore(restored.type);
+            if (restored.stacks <= 1) {
+                data.addBuff(type, restored.buff, (int) ticks);
+                continue;
+            }
+            // Stacking from scratch rebuilds the count the same way it was reached
+            for (int i = 0; i < restored.stacks; i++) {
+                data.addStack(type, restored.buff, (int) ticks, restored.limit);
+            }
+        }
+    }
+
+    /**
+     * Dispatches a buff event, skipping it when running without a server
+     *
+     * @param event event to call
+     */
+    void callEvent(final Event event) {
+        if (Bukkit.getServer() != null) {
+            Bukkit.getPluginManager().callEvent(event);
+        }
+    }
+
+    /**
+     * @return the maximum number of buffs that expire within a single tick
+     */
+    public int getExpiryBudget() {
+        return expiryWheel.getBudget();
+    }
+
+    /**
+     * Limits how many buffs may expire within a single tick. When more buffs are due
+     * at once, e.g. when a raid-wide buff ends, the remaining ones expire over the
+     * following ticks instead of all landing on the same one.
+     *
+     * @param budget maximum number of buffs expired per tick
+     */
+    public void setExpiryBudget(final int budget) {
+        expiryWheel.setBudget(budget);
+    }
+
+    /**
+     * Sets the tracer receiving details of every buff application. Tracing is off
+     * by default, unless BUFF logging is enabled in the config, which installs
+     * {@link BuffTracer#LOGGER}. A tracer set here always takes precedence.
+     *
+     * @param tracer tracer to use or null to disable tracing
+     */
+    public void setTracer(final BuffTracer tracer) {
+        this.tracer = tracer;
+        this.tracerSet = true;
+    }
+
+    /**
+     * Captures the buff applications of a single entity. This takes
+     * priority over the tracer set through {@link #setTracer(BuffTracer)}.
+     *
+     * @param entity entity to trace
+     * @param tracer tracer to use or null to stop tracing the entity
+     */
+    public void trace(final LivingEntity entity, final BuffTracer tracer) {
+        if (tracer == null) {
+            tracers.remove(entity.getUniqueId());
+        } else {
+            tracers.put(entity.getUniqueId(), tracer);
+        }
+    }
+
+    /**
+     * Retrieves the tracer for the entity
+     *
+     * @param entity UUID of the entity buffs are applied for
+     * @return the tracer or null if the entity isn't traced
+     */
+    BuffTracer getTracer(final UUID entity) {
+        if (tracers.isEmpty()) return tracer;
+
+        final BuffTracer entityTracer = tracers.get(entity);
+        return entityTracer != null ? entityTracer : tracer;
+    }
+
     /**
      * Retrieves the buff data for an entity. This returns null if
      * no existing data is found.
@@ -76,11 +868,32 @@ public class BuffManager implements BuffProvider {
     public static BuffData getBuffData(final LivingEntity entity, final boolean create) {
         if (entity == null) return null;
 
-        Map<UUID, BuffData> data = getInstance().getData();
-        if (!data.containsKey(entity.getUniqueId()) && create) {
-            data.put(entity.getUniqueId(), new BuffData(entity));
-        }
-        return data.get(entity.getUniqueId());
+        final BuffManager manager = getInstance();
+        return create ? manager.index.getOrCreate(entity) : manager.index.get(entity.getUniqueId());
+    }
+
+    /**
+     * Retrieves the buff data for an entity without creating it. Unlike
+     * {@link #getBuffData(LivingEntity, boolean)}, this returns a shared empty
+     * sentinel rather than null, so read paths need only one index probe.
+     *
+     * @param entity entity to get the buff data for
+     * @return the buff data or {@link BuffData#EMPTY}
+     */
+    static BuffData peek(final LivingEntity entity) {
+        final BuffData data = getInstance().index.get(entity.getUniqueId());
+        return data != null ? data : BuffData.EMPTY;
+    }
+
+    /**
+     * Retrieves an immutable view of the buffs on an entity. This never locks
+     * and is safe to call from any thread.
+     *
+     * @param entity entity to get the buffs of
+     * @return the current buffs, empty if the entity has none
+     */
+    public static BuffSnapshot snapshot(final LivingEntity entity) {
+        return entity == null ? BuffSnapshot.EMPTY : peek(entity).getSnapshot();
     }
 
     /**
@@ -91,13 +904,98 @@ public class BuffManager implements BuffProvider {
     public static void clearData(final LivingEntity entity) {
         if (entity == null) return;
 
-        Map<UUID, BuffData> data   = getInstance().getData();
-        final BuffData      result = data.remove(entity.getUniqueId());
+        final BuffData result = getInstance().index.remove(entity.getUniqueId(), null);
         if (result != null) {
             result.clear();
         }
     }
 
+    /**
+     * Drops the buff data of an entity if it is still the registered one
+     *
+     * @param entity   UUID of the entity the data belongs to
+     * @param buffData data to drop
+     */
+    static void clearData(final UUID entity, final BuffData buffData) {
+        getInstance().index.remove(entity, buffData);
+    }
+
+    /**
+     * Hands the buffs of a player that leaves the server to sync and drops their data. If
+     * buffs are persisted, the buffs that are in the log are kept in memory as well, so they
+     * are restored when the player rejoins during this run just like after a restart.
+     *
+     * @param player UUID of the player
+     */
+    void playerQuit(final UUID player) {
+        final BuffSync sync = this.sync;
+        if (sync != null) sync.quit(player);
+
+        final BuffData data = index.get(player);
+        if (data != null && persistence != null) {
+            final long               now    = getCurrentTick();
+            final List<RestoredBuff> parked = new ArrayList<>();
+            data.forEachPlain(null, (type, buff, deadline) -> {
+                if (deadline <= now) return;
+                final int stacks = data.getStacks(type, buff.getKey());
+                parked.add(new RestoredBuff(type.getName(), buff, (int) (deadline - now), stacks, stacks));
+            });
+            if (!parked.isEmpty()) restoring.put(player, parked);
+        }
+        unloadData(player);
+    }
+
+    /**
+     * Forgets restored buffs that ran out before their player came back
+     */
+    private void pruneRestoring() {
+        final long now = getCurrentTick();
+        restoring.values().removeIf(buffs -> {
+            for (final RestoredBuff buff : buffs) {
+                if (buff.deadline > now) return false;
+            }
+            return true;
+        });
+    }
+
+    /**
+     * Drops the buffs of an entity that left the server. Unlike {@link #clearData(LivingEntity)}
+     * this keeps persisted buffs in the log, so they are restored after a restart.
+     *
+     * @param entity UUID of the entity
+     */
+    void unloadData(final UUID entity) {
+        final BuffData result = index.remove(entity, null);
+        if (result != null) {
+            result.detach(false);
+        }
+    }
+
+    /**
+     * Finds buff data that is still tracked although its entity no longer exists.
+     * Data is normally dropped when its entity dies, unloads or quits, so anything
+     * reported here points at an entity removal that isn't handled.
+     *
+     * @return UUIDs of the entities whose buff data leaked
+     */
+    public List<UUID> findLeaks() {
+        final List<UUID> leaks = new ArrayList<>();
+        for (final BuffData buffData : index.values()) {
+            if (buffData.isLeaked()) leaks.add(buffData.getEntityId());
+        }
+        return leaks;
+    }
+
+    /**
+     * Enables periodically logging leaked buff data to the BUFF log,
+     * see {@link #findLeaks()}
+     *
+     * @param enabled whether to check for leaks
+     */
+    public void setLeakDetection(final boolean enabled) {
+        this.leakDetection = enabled;
+    }
+
     /**
      * Adds an offensive buff to the entity
      *
@@ -210,34 +1108,168 @@ public class BuffManager implements BuffProvider {
 
     @Override
     public double scaleValue(String name, LivingEntity entity, double value) {
-        final BuffData data = getBuffData(entity, false);
-        if (data == null) {
-            Logger.log(LogType.BUFF, 1, "No buff data for entity: " + entity.getName());
-            return value;
+        final BuffRecorder recorder = this.recorder;
+        if (recorder != null && entity != null) recorder.scale(entity.getUniqueId(), name, false, value);
+        if (!metrics.sampleScale()) return scaleByName(name, entity, value);
+
+        final long   start  = System.nanoTime();
+        final double result = scaleByName(name, entity, value);
+        metrics.recordScaleLatency(System.nanoTime() - start);
+        return result;
+    }
+
+    private double scaleByName(final String name, final LivingEntity entity, final double value) {
+        final BuffData data = peek(entity);
+        if (data == BuffData.EMPTY) {
+            return unscaled(entity, name, value);
         }
 
         // Handle custom types like FABLED_skill_damage_<classification>
-        BuffType type = BuffType.getByNameOrLocal(name);
-        String category = null;
-        if (type == null && name.startsWith(BuffType.SKILL_DAMAGE.getLocalizedName() + "_")) {
-            type = BuffType.SKILL_DAMAGE;
-            category = name.substring(BuffType.SKILL_DAMAGE.getLocalizedName().length() + 1);
-            Logger.log(LogType.BUFF, 1, "Parsed custom skill damage type: " + name + " as type: " + type.getLocalizedName() + ", category: " + category);
-        } else if (type == null && name.startsWith(BuffType.SKILL_DEFENSE.getLocalizedName() + "_")) {
-            type = BuffType.SKILL_DEFENSE;
-            category = name.substring(BuffType.SKILL_DEFENSE.getLocalizedName().length() + 1);
-            Logger.log(LogType.BUFF, 1, "Parsed custom skill defense type: " + name + " as type: " + type.getLocalizedName() + ", category: " + category);
-        } else if (type == null) {
-            Logger.log(LogType.BUFF, 1, "Unknown buff type: " + name + ", returning unscaled value");
-            return value;
+        final BuffKey key = BuffKey.resolve(name);
+        if (key == null) {
+            return unscaled(entity, name, value);
         }
 
-        Player player = (entity instanceof Player) ? (Player) entity : null;
-        double result = data.apply(type, category, value, player);
-        Logger.log(LogType.BUFF, 1, "Scaled value for " + name + " on " + entity.getName() + ": " + value + " -> " + result);
+        return doScaleValue(data, key, entity, value);
+    }
+
+    /**
+     * Scales a value using the buffs of a pre-resolved key. Callers that apply the same
+     * buff type repeatedly should resolve the key once through {@link BuffKey#resolve(String)}
+     * or {@link BuffKey#of(BuffType, String)} and use this instead of the name based lookup.
+     *
+     * @param key    resolved buff key
+     * @param entity entity to use the data of
+     * @param value  base amount to modify
+     * @return modified number
+     */
+    public double scaleValue(final BuffKey key, final LivingEntity entity, final double value) {
+        final BuffRecorder recorder = this.recorder;
+        if (recorder != null && entity != null) recorder.scale(entity.getUniqueId(), key.getName(), true, value);
+        if (!metrics.sampleScale()) return scaleByKey(key, entity, value);
+
+        final long   start  = System.nanoTime();
+        final double result = scaleByKey(key, entity, value);
+        metrics.recordScaleLatency(System.nanoTime() - start);
         return result;
     }
 
+    private double scaleByKey(final BuffKey key, final LivingEntity entity, final double value) {
+        final BuffData data = peek(entity);
+        if (data == BuffData.EMPTY) {
+            return unscaled(entity, key.getName(), value);
+        }
+        return doScaleValue(data, key, entity, value);
+    }
+
+    /**
+     * Scales one value per entity using the buffs of the same type, e.g. for the
+     * targets of an area skill. The name is only resolved once for the whole batch.
+     *
+     * @param name     name of the buff type
+     * @param entities entities to use the data of
+     * @param values   base amounts to modify, one per entity
+     * @param results  array receiving the modified numbers, may be the values array
+     */
+    public void scaleValues(final String name,
+                            final List<? extends LivingEntity> entities,
+                            final double[] values,
+                            final double[] results) {
+        final BuffKey key = BuffKey.resolve(name);
+        if (key == null) {
+            final BuffRecorder recorder = this.recorder;
+            metrics.recordScales(entities.size());
+            for (int i = 0; i < entities.size(); i++) {
+                final LivingEntity entity = entities.get(i);
+                if (recorder != null) recorder.scale(entity.getUniqueId(), name, false, values[i]);
+                results[i] = unscaled(entity, name, values[i]);
+            }
+            return;
+        }
+        scaleValues(key, entities, values, results);
+    }
+
+    /**
+     * Scales one value per entity using the buffs of the same pre-resolved key
+     *
+     * @param key      resolved buff key
+     * @param entities entities to use the data of
+     * @param values   base amounts to modify, one per entity
+     * @param results  array receiving the modified numbers, may be the values array
+     */
+    public void scaleValues(final BuffKey key,
+                            final List<? extends LivingEntity> entities,
+                            final double[] values,
+                            final double[] results) {
+        final BuffRecorder recorder = this.recorder;
+        metrics.recordScales(entities.size());
+        for (int i = 0; i < entities.size(); i++) {
+            final LivingEntity entity = entities.get(i);
+            final BuffData     data   = peek(entity);
+            // Batches are recorded as single scales, which replay the same lookups
+            if (recorder != null) recorder.scale(entity.getUniqueId(), key.getName(), true, values[i]);
+            results[i] = data == BuffData.EMPTY
+                    ? unscaled(entity, key.getName(), values[i])
+                    : doScaleValue(data, key, entity, values[i]);
+        }
+    }
+
+    /**
+     * Scales several values of one entity, each with the buffs of its own key.
+     * The entity is only looked up once and all values see the same buffs.
+     *
+     * @param keys    resolved buff keys
+     * @param entity  entity to use the data of
+     * @param values  base amounts to modify, one per key
+     * @param results array receiving the modified numbers, may be the values array
+     */
+    public void scaleValues(final BuffKey[] keys,
+                            final LivingEntity entity,
+                            final double[] values,
+                            final double[] results) {
+        final BuffRecorder recorder = this.recorder;
+        if (recorder != null) {
+            for (int i = 0; i < keys.length; i++) {
+                recorder.scale(entity.getUniqueId(), keys[i].getName(), true, values[i]);
+            }
+        }
+        metrics.recordScales(keys.length);
+        final BuffData data = peek(entity);
+        if (data == BuffData.EMPTY) {
+            for (int i = 0; i < keys.length; i++) {
+                results[i] = unscaled(entity, keys[i].getName(), values[i]);
+            }
+            return;
+        }
+        data.apply(keys, values, results, (entity instanceof Player) ? (Player) entity : null);
+    }
+
+    /**
+     * Retrieves the multipliers and flat bonuses of several keys on one entity
+     *
+     * @param entity      entity to use the data of
+     * @param keys        resolved buff keys
+     * @param multipliers array receiving the total multiplier of each key
+     * @param bonuses     array receiving the total flat bonus of each key
+     */
+    public static void getModifiers(final LivingEntity entity,
+                                    final BuffKey[] keys,
+                                    final double[] multipliers,
+                                    final double[] bonuses) {
+        peek(entity).getModifiers(keys, multipliers, bonuses);
+    }
+
+    private double doScaleValue(final BuffData data, final BuffKey key, final LivingEntity entity, final double value) {
+        Player player = (entity instanceof Player) ? (Player) entity : null;
+        return data.apply(key, value, player);
+    }
+
+    private double unscaled(final LivingEntity entity, final String name, final double value) {
+        final BuffTracer tracer = getTracer(entity.getUniqueId());
+        if (tracer != null) tracer.onUnscaled(entity, name, value);
+        return value;
+    }
+
     /**
      * @deprecated use {@link BuffManager#apply(LivingEntity, BuffType, double)} instead
      */
@@ -269,4 +1301,67 @@ public class BuffManager implements BuffProvider {
     public static double modifySkillTakenDefense(LivingEntity entity, double damage) {
         return apply(entity, BuffType.SKILL_DEFENSE, damage);
     }
+
+    /**
+     * A buff loaded from the persistence file that wasn't applied yet
+     */
+    static final class RestoredBuff {
+        private final String type;
+        private final Buff   buff;
+        private final long   deadline;
+        private final int    stacks;
+        private final int    limit;
+
+        /**
+         * @param type  full name of the buff type
+         * @param buff  buff details
+         * @param ticks remaining duration from now on, the buff keeps running down until it is applied
+         */
+        RestoredBuff(final String type, final Buff buff, final int ticks) {
+            this(type, buff, ticks, 1, 1);
+        }
+
+        /**
+         * @param type   full name of the buff type
+         * @param buff   buff details
+         * @param ticks  remaining duration from now on, the buff keeps running down until it is applied
+         * @param stacks number of stacks of the buff
+         * @param limit  maximum number of stacks
+         */
+        RestoredBuff(final String type, final Buff buff, final int ticks, final int stacks, final int limit) {
+            this.type = type;
+            this.buff = buff;
+            this.deadline = getInstance().getCurrentTick() + ticks;
+            this.stacks = stacks;
+            this.limit = limit;
+        }
+    }
+
+    /**
+     * A buff that expired during the current tick and whose event wasn't called yet
+     */
+    private static final class Expired {
+        private final LivingEntity entity;
+        private final BuffKey      type;
+        private final Buff         buff;
+
+        private Expired(final LivingEntity entity, final BuffKey type, final Buff buff) {
+            this.entity = entity;
+            this.type = type;
+            this.buff = buff;
+        }
+    }
+
+    private class ExpiryTask extends BukkitRunnable {
+        @Override
+        public void run() {
+            tick();
+            if (leakDetection && expiryWheel.currentTick() % LEAK_CHECK_TICKS == 0) {
+                final List<UUID> leaks = findLeaks();
+                if (!leaks.isEmpty()) {
+                    Logger.log(LogType.BUFF, 1, "Buff data of " + leaks.size() + " removed entities is still tracked: " + leaks);
+                }
+            }
+        }
+    }
 }
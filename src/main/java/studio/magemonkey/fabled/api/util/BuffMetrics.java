@@ -0,0 +1,343 @@
+/**
+ * Fabled
+ * studio.magemonkey.fabled.api.util.BuffMetrics
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Copyright (c) 2024 MageMonkeyStudio
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software") to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package studio.magemonkey.fabled.api.util;
+
+import studio.magemonkey.fabled.log.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms of the buff subsystem. Counters are striped {@link LongAdder}s
+ * and latencies are only measured for a random sample of calls, so the metrics are cheap
+ * enough to stay enabled in production.
+ * <p>
+ * Histograms use power of two buckets, so percentiles are reported as the upper bound
+ * of the bucket they fall into.
+ */
+public final class BuffMetrics implements BuffMetricsMBean {
+    private static final String OBJECT_NAME = "studio.magemonkey.fabled:type=BuffMetrics";
+    private static final int    SAMPLE_MASK = 63;
+    private static final int    BUCKETS     = 64;
+
+    private final BuffManager manager;
+
+    private final Map<BuffKey, LongAdder> liveBuffs      = new ConcurrentHashMap<>();
+    private final LongAdder               scaleCalls     = new LongAdder();
+    private final LongAdder               applyCalls     = new LongAdder();
+    private final LongAdder               adds           = new LongAdder();
+    private final LongAdder               overwrites     = new LongAdder();
+    private final LongAdder               expiries       = new LongAdder();
+    private final LongAdder[]             scaleLatencies = buckets();
+    private final LongAdder[]             applyLatencies = buckets();
+    private final LongAdder[]             addLatencies   = buckets();
+    private final LongAdder[]             expiryLags     = buckets();
+    private final AtomicLong              maxExpiryLag   = new AtomicLong();
+
+    BuffMetrics(final BuffManager manager) {
+        this.manager = manager;
+    }
+
+    /**
+     * Registers the metrics with the platform MBean server
+     */
+    public void registerMBean() {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName  name   = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) server.registerMBean(this, name);
+        } catch (JMException e) {
+            Logger.error("Failed to register buff metrics: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Removes the metrics from the platform MBean server
+     */
+    public void unregisterMBean() {
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName  name   = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) server.unregisterMBean(name);
+        } catch (JMException e) {
+            Logger.error("Failed to unregister buff metrics: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public int getTrackedEntities() {
+        return manager.getTrackedEntities();
+    }
+
+    @Override
+    public long getLiveBuffs() {
+        long total = 0;
+        for (final LongAdder count : liveBuffs.values()) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    /**
+     * @param type type of buff
+     * @return the number of active buffs of exactly the type across all entities
+     */
+    public long getLiveBuffs(final BuffKey type) {
+        final LongAdder count = liveBuffs.get(type);
+        return count == null ? 0 : count.sum();
+    }
+
+    /**
+     * @return the number of active buffs by type name
+     */
+    public Map<String, Long> getLiveBuffsByType() {
+        final Map<String, Long> result = new HashMap<>();
+        for (final Map.Entry<BuffKey, LongAdder> entry : liveBuffs.entrySet()) {
+            final long count = entry.getValue().sum();
+            if (count > 0) result.put(entry.getKey().getName(), count);
+        }
+        return result;
+    }
+
+    @Override
+    public long getScaleCalls() {
+        return scaleCalls.sum();
+    }
+
+    @Override
+    public long getApplyCalls() {
+        return applyCalls.sum();
+    }
+
+    @Override
+    public long getAdds() {
+        return adds.sum();
+    }
+
+    @Override
+    public long getOverwrites() {
+        return overwrites.sum();
+    }
+
+    @Override
+    public long getExpiries() {
+        return expiries.sum();
+    }
+
+    @Override
+    public long getScaleLatencyMedianNanos() {
+        return getScaleLatencyNanos(0.5);
+    }
+
+    @Override
+    public long getScaleLatency99Nanos() {
+        return getScaleLatencyNanos(0.99);
+    }
+
+    /**
+     * @param percentile percentile between 0 and 1
+     * @return the sampled scaleValue latency at the percentile in nanoseconds
+     */
+    public long getScaleLatencyNanos(final double percentile) {
+        return percentile(scaleLatencies, percentile);
+    }
+
+    @Override
+    public long getApplyLatencyMedianNanos() {
+        return getApplyLatencyNanos(0.5);
+    }
+
+    @Override
+    public long getApplyLatency99Nanos() {
+        return getApplyLatencyNanos(0.99);
+    }
+
+    /**
+     * @param percentile percentile between 0 and 1
+     * @return the sampled latency of applying buffs to a value at the percentile in nanoseconds
+     */
+    public long getApplyLatencyNanos(final double percentile) {
+        return percentile(applyLatencies, percentile);
+    }
+
+    @Override
+    public long getAddLatencyMedianNanos() {
+        return getAddLatencyNanos(0.5);
+    }
+
+    @Override
+    public long getAddLatency99Nanos() {
+        return getAddLatencyNanos(0.99);
+    }
+
+    /**
+     * @param percentile percentile between 0 and 1
+     * @return the sampled latency of adding or overwriting a buff at the percentile in nanoseconds
+     */
+    public long getAddLatencyNanos(final double percentile) {
+        return percentile(addLatencies, percentile);
+    }
+
+    @Override
+    public long getExpiryLag99Ticks() {
+        return getExpiryLagTicks(0.99);
+    }
+
+    /**
+     * @param percentile percentile between 0 and 1
+     * @return how many ticks after their deadline buffs expired at the percentile
+     */
+    public long getExpiryLagTicks(final double percentile) {
+        return percentile(expiryLags, percentile);
+    }
+
+    @Override
+    public long getMaxExpiryLagTicks() {
+        return maxExpiryLag.get();
+    }
+
+    @Override
+    public void reset() {
+        scaleCalls.reset();
+        applyCalls.reset();
+        adds.reset();
+        overwrites.reset();
+        expiries.reset();
+        for (int i = 0; i < BUCKETS; i++) {
+            scaleLatencies[i].reset();
+            applyLatencies[i].reset();
+            addLatencies[i].reset();
+            expiryLags[i].reset();
+        }
+        maxExpiryLag.set(0);
+    }
+
+    /**
+     * Counts a scaleValue call
+     *
+     * @return true if the latency of this call should be measured
+     */
+    boolean sampleScale() {
+        scaleCalls.increment();
+        return (ThreadLocalRandom.current().nextInt() & SAMPLE_MASK) == 0;
+    }
+
+    void recordScales(final int count) {
+        scaleCalls.add(count);
+    }
+
+    void recordScaleLatency(final long nanos) {
+        scaleLatencies[bucket(nanos)].increment();
+    }
+
+    /**
+     * Decides whether the latency of adding a buff should be measured. Adds are
+     * counted separately once it is known whether they overwrote a buff.
+     *
+     * @return true if the latency of this add should be measured
+     */
+    boolean sampleAdd() {
+        return (ThreadLocalRandom.current().nextInt() & SAMPLE_MASK) == 0;
+    }
+
+    void recordAddLatency(final long nanos) {
+        addLatencies[bucket(nanos)].increment();
+    }
+
+    /**
+     * Counts a call applying buffs to a value
+     *
+     * @return true if the latency of this call should be measured
+     */
+    boolean sampleApply() {
+        applyCalls.increment();
+        return (ThreadLocalRandom.current().nextInt() & SAMPLE_MASK) == 0;
+    }
+
+    void recordApplyLatency(final long nanos) {
+        applyLatencies[bucket(nanos)].increment();
+    }
+
+    void recordAdd(final BuffKey type, final boolean overwrite) {
+        if (overwrite) {
+            overwrites.increment();
+        } else {
+            adds.increment();
+            liveBuffs.computeIfAbsent(type, t -> new LongAdder()).increment();
+        }
+    }
+
+    void recordRemoved(final BuffKey type, final int count) {
+        final LongAdder live = liveBuffs.get(type);
+        if (live != null) live.add(-count);
+    }
+
+    void recordExpiry(final BuffKey type, final long lag) {
+        expiries.increment();
+        recordRemoved(type, 1);
+        expiryLags[bucket(lag)].increment();
+        maxExpiryLag.accumulateAndGet(lag, Math::max);
+    }
+
+    private static int bucket(final long value) {
+        return value <= 0 ? 0 : BUCKETS - Long.numberOfLeadingZeros(value);
+    }
+
+    private static long percentile(final LongAdder[] histogram, final double percentile) {
+        final long[] counts = new long[BUCKETS];
+        long         total  = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = histogram[i].sum();
+            total += counts[i];
+        }
+        if (total == 0) return 0;
+
+        final long target = (long) Math.ceil(total * percentile);
+        long       seen   = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= target) return i == 0 ? 0 : (1L << i) - 1;
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private static LongAdder[] buckets() {
+        final LongAdder[] buckets = new LongAdder[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+        return buckets;
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * Fabled
+ * studio.magemonkey.fabled.api.util.BuffPartitions
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Copyright (c) 2024 MageMonkeyStudio
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software") to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package studio.magemonkey.fabled.api.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Partitions buff data by world and region, so whole worlds or regions can be
+ * iterated and evicted without touching the rest of the server. A region spans
+ * {@link #REGION_SIZE} by {@link #REGION_SIZE} blocks.
+ * <p>
+ * Data is placed by the location of its entity on the tick after a buff was added,
+ * refreshed, stacked or expired, and right away when its entity teleports or changes
+ * worlds. Entities walking around in between stay filed under their old region, so
+ * evicting a region checks where each entity really is before dropping its buffs.
+ * Locations are only read on the main thread, outside any lock.
+ */
+final class BuffPartitions {
+    static final int REGION_BITS = 7;
+    static final int REGION_SIZE = 1 << REGION_BITS;
+
+    private final Map<UUID, Map<Long, Set<BuffData>>> worlds = new ConcurrentHashMap<>();
+
+    /**
+     * @param blockX x coordinate of a block
+     * @param blockZ z coordinate of a block
+     * @return the key of the region holding the block
+     */
+    static long region(final int blockX, final int blockZ) {
+        return regionKey(blockX >> REGION_BITS, blockZ >> REGION_BITS);
+    }
+
+    /**
+     * @param regionX x coordinate of the region
+     * @param regionZ z coordinate of the region
+     * @return the key of the region
+     */
+    static long regionKey(final int regionX, final int regionZ) {
+        return ((long) regionX << 32) | (regionZ & 0xFFFFFFFFL);
+    }
+
+    void add(final UUID world, final long region, final BuffData buffData) {
+        worlds.computeIfAbsent(world, w -> new ConcurrentHashMap<>()).compute(region, (r, set) -> {
+            if (set == null) set = ConcurrentHashMap.newKeySet();
+            set.add(buffData);
+            return set;
+        });
+    }
+
+    void remove(final UUID world, final long region, final BuffData buffData) {
+        final Map<Long, Set<BuffData>> regions = worlds.get(world);
+        if (regions == null) return;
+
+        regions.computeIfPresent(region, (r, set) -> {
+            set.remove(buffData);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    /**
+     * @return live read-only view of the data in the region
+     */
+    Set<BuffData> get(final UUID world, final long region) {
+        final Map<Long, Set<BuffData>> regions = worlds.get(world);
+        final Set<BuffData>            set     = regions == null ? null : regions.get(region);
+        return set == null ? Collections.emptySet() : Collections.unmodifiableSet(set);
+    }
+
+    /**
+     * @return the data of every region in the world
+     */
+    List<BuffData> get(final UUID world) {
+        final List<BuffData>           result  = new ArrayList<>();
+        final Map<Long, Set<BuffData>> regions = worlds.get(world);
+        if (regions != null) {
+            for (final Set<BuffData> set : regions.values()) {
+                result.addAll(set);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Detaches the partition of a world
+     *
+     * @return the data that was in the world
+     */
+    List<BuffData> removeWorld(final UUID world) {
+        final List<BuffData>           result  = new ArrayList<>();
+        final Map<Long, Set<BuffData>> regions = worlds.remove(world);
+        if (regions != null) {
+            for (final Set<BuffData> set : regions.values()) {
+                result.addAll(set);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Detaches the partition of a region
+     *
+     * @return the data that was in the region
+     */
+    Collection<BuffData> removeRegion(final UUID world, final long region) {
+        final Map<Long, Set<BuffData>> regions = worlds.get(world);
+        final Set<BuffData>            set     = regions == null ? null : regions.remove(region);
+        return set == null ? Collections.emptyList() : set;
+    }
+}
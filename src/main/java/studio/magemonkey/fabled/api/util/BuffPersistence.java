@@ -0,0 +1,488 @@
+/**
+ * Fabled
+ * studio.magemonkey.fabled.api.util.BuffPersistence
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Copyright (c) 2024 MageMonkeyStudio
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software") to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package studio.magemonkey.fabled.api.util;
+
+import studio.magemonkey.fabled.log.LogType;
+import studio.magemonkey.fabled.log.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only log of player buffs so timed buffs survive restarts and crashes.
+ * <p>
+ * Changes are queued by the server threads and written by a single background thread,
+ * which also keeps a mirror of the persisted state to compact the log into a fresh
+ * snapshot once it grew too large. On startup the file is memory-mapped and parsed on
+ * the same background thread, the restored buffs are handed to the {@link BuffManager}
+ * which applies them when the player is first looked up.
+ * <p>
+ * The file starts with a magic number and version, followed by records that each start
+ * with an op byte. Strings are written once per file and referenced by id afterwards.
+ * Deadlines are stored on a log clock that continues across restarts. Buffs are stored
+ * with their stacks and stack limit, files of the first version without them are still
+ * read and restore single stacks.
+ */
+final class BuffPersistence {
+    private static final int  MAGIC   = 0x46425546; // FBUF
+    private static final byte VERSION = 2;
+
+    private static final byte OP_TICK   = 0;
+    private static final byte OP_STRING = 1;
+    private static final byte OP_PUT    = 2;
+    private static final byte OP_TYPE   = 3;
+    private static final byte OP_CLEAR  = 4;
+
+    private static final int  FLUSH_MILLIS      = 1000;
+    private static final long MIN_COMPACT_BYTES = 64 * 1024;
+
+    private final File                 file;
+    private final BuffManager          manager;
+    private final BlockingQueue<Op>    queue  = new LinkedBlockingQueue<>();
+    private final Map<UUID, Stored>    mirror = new HashMap<>();
+    private final Map<String, Integer> ids    = new HashMap<>();
+    private final Thread               writer;
+
+    private volatile boolean          running = true;
+    private volatile boolean          failed;
+    private          DataOutputStream out;
+    private          long             compactAt;
+    private          long             clockOffset;
+
+    BuffPersistence(final BuffManager manager, final File file) {
+        this.manager = manager;
+        this.file = file;
+        this.writer = new Thread(this::run, "Fabled-BuffPersistence");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Records a buff that was added or overwritten
+     *
+     * @param entity   entity UUID
+     * @param type     type of the buff
+     * @param buff     buff details
+     * @param deadline tick of the expiry wheel the buff expires at
+     */
+    void put(final UUID entity, final BuffKey type, final Buff buff, final long deadline) {
+        put(entity, type, buff, deadline, 1, 1);
+    }
+
+    /**
+     * Records a buff that was added, overwritten, stacked or had its duration changed
+     *
+     * @param entity   entity UUID
+     * @param type     type of the buff
+     * @param buff     buff details
+     * @param deadline tick of the expiry wheel the buff expires at
+     * @param stacks   number of stacks of the buff
+     * @param limit    maximum number of stacks, or 0 to keep the limit stored for the buff
+     */
+    void put(final UUID entity,
+             final BuffKey type,
+             final Buff buff,
+             final long deadline,
+             final int stacks,
+             final int limit) {
+        if (failed) return;
+        queue.add(new Op(OP_PUT, entity, type.getName(), buff, deadline, stacks, limit));
+    }
+
+    /**
+     * Records that all buffs of a type were removed
+     *
+     * @param entity entity UUID
+     * @param type   removed type
+     */
+    void clearType(final UUID entity, final BuffKey type) {
+        if (failed) return;
+        queue.add(new Op(OP_TYPE, entity, type.getName(), null, 0, 0, 0));
+    }
+
+    /**
+     * Records that all buffs of an entity were removed
+     *
+     * @param entity entity UUID
+     */
+    void clear(final UUID entity) {
+        if (failed) return;
+        queue.add(new Op(OP_CLEAR, entity, null, null, 0, 0, 0));
+    }
+
+    /**
+     * Writes all queued changes and closes the log. This blocks until the
+     * background thread finished.
+     */
+    void close() {
+        running = false;
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            load();
+            compact();
+            while (running || !queue.isEmpty()) {
+                Op op;
+                try {
+                    op = queue.poll(FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                while (op != null) {
+                    append(op);
+                    op = queue.poll();
+                }
+                writeTick();
+                out.flush();
+                if (out.size() >= compactAt) compact();
+            }
+        } catch (IOException | RuntimeException e) {
+            // Nothing consumes the queue anymore, so stop accepting changes instead of piling them up
+            failed = true;
+            queue.clear();
+            manager.persistenceFailed(this);
+            Logger.error("Failed to persist buffs to " + file.getName() + ", buffs are no longer persisted: "
+                    + e.getMessage());
+        } finally {
+            closeStream();
+        }
+    }
+
+    private void load() throws IOException {
+        if (!file.exists() || file.length() == 0) {
+            clockOffset = -manager.getCurrentTick();
+            return;
+        }
+
+        long lastTick = 0;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            final MappedByteBuffer buffer  = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            final List<String>     strings = new ArrayList<>();
+            final byte version = buffer.remaining() < Integer.BYTES + 1 || buffer.getInt() != MAGIC ? 0 : buffer.get();
+            if (version < 1 || version > VERSION) {
+                Logger.error("Ignoring buff file " + file.getName() + " with an unknown format");
+                clockOffset = -manager.getCurrentTick();
+                return;
+            }
+
+            try {
+                while (buffer.hasRemaining()) {
+                    final byte op = buffer.get();
+                    switch (op) {
+                        case OP_TICK:
+                            lastTick = buffer.getLong();
+                            break;
+                        case OP_STRING:
+                            final byte[] bytes = new byte[readVarInt(buffer)];
+                            buffer.get(bytes);
+                            strings.add(new String(bytes, StandardCharsets.UTF_8));
+                            break;
+                        case OP_PUT:
+                            final UUID id = new UUID(buffer.getLong(), buffer.getLong());
+                            final String type = strings.get(readVarInt(buffer));
+                            final String key = strings.get(readVarInt(buffer));
+                            final double value = buffer.getDouble();
+                            final boolean percent = buffer.get() != 0;
+                            final long deadline = buffer.getLong();
+                            final int stacks = version < 2 ? 1 : readVarInt(buffer);
+                            final int limit = version < 2 ? 1 : readVarInt(buffer);
+                            mirror.computeIfAbsent(id, uuid -> new Stored())
+                                    .put(type, new Buff(key, value, percent), deadline, stacks, limit);
+                            break;
+                        case OP_TYPE:
+                            final UUID typeOwner = new UUID(buffer.getLong(), buffer.getLong());
+                            final Stored stored = mirror.get(typeOwner);
+                            final String clearedType = strings.get(readVarInt(buffer));
+                            if (stored != null) stored.types.remove(clearedType);
+                            break;
+                        case OP_CLEAR:
+                            mirror.remove(new UUID(buffer.getLong(), buffer.getLong()));
+                            break;
+                        default:
+                            throw new IOException("Unknown record " + op);
+                    }
+                }
+            } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+                // A crash while appending leaves a partial record at the end, everything before it is intact
+                Logger.log(LogType.BUFF, 1, "Buff file " + file.getName() + " ends with a partial record, ignoring it");
+            }
+        }
+
+        // Continue the log clock from where the last run stopped
+        clockOffset = lastTick - manager.getCurrentTick();
+        final Map<UUID, List<BuffManager.RestoredBuff>> restored = new HashMap<>();
+        final Iterator<Map.Entry<UUID, Stored>>          iterator = mirror.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<UUID, Stored> entry = iterator.next();
+            entry.getValue().dropExpired(lastTick);
+            if (entry.getValue().types.isEmpty()) {
+                iterator.remove();
+                continue;
+            }
+
+            final List<BuffManager.RestoredBuff> buffs = new ArrayList<>();
+            for (final Map.Entry<String, Map<String, StoredBuff>> type : entry.getValue().types.entrySet()) {
+                for (final StoredBuff buff : type.getValue().values()) {
+                    buffs.add(new BuffManager.RestoredBuff(type.getKey(), buff.buff, (int) (buff.deadline - lastTick),
+                            buff.stacks, buff.limit));
+                }
+            }
+            restored.put(entry.getKey(), buffs);
+        }
+        manager.restore(restored);
+    }
+
+    private void append(final Op op) throws IOException {
+        final long deadline = op.deadline + clockOffset;
+        switch (op.op) {
+            case OP_PUT:
+                final StoredBuff put = mirror.computeIfAbsent(op.entity, uuid -> new Stored())
+                        .put(op.type, op.buff, deadline, op.stacks, op.limit);
+                writePut(op.entity, op.type, put);
+                break;
+            case OP_TYPE:
+                final Stored stored = mirror.get(op.entity);
+                if (stored == null || stored.types.remove(op.type) == null) return;
+                final int typeId = string(op.type);
+                out.writeByte(OP_TYPE);
+                writeUuid(op.entity);
+                writeVarInt(out, typeId);
+                break;
+            case OP_CLEAR:
+                if (mirror.remove(op.entity) == null) return;
+                out.writeByte(OP_CLEAR);
+                writeUuid(op.entity);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void writePut(final UUID entity, final String type, final StoredBuff stored) throws IOException {
+        final int typeId = string(type);
+        final int keyId  = string(stored.buff.getKey());
+        out.writeByte(OP_PUT);
+        writeUuid(entity);
+        writeVarInt(out, typeId);
+        writeVarInt(out, keyId);
+        out.writeDouble(stored.buff.getValue());
+        out.writeBoolean(stored.buff.isPercent());
+        out.writeLong(stored.deadline);
+        writeVarInt(out, stored.stacks);
+        writeVarInt(out, stored.limit);
+    }
+
+    private void writeTick() throws IOException {
+        out.writeByte(OP_TICK);
+        out.writeLong(manager.getCurrentTick() + clockOffset);
+    }
+
+    /**
+     * Rewrites the log as a snapshot of the mirror, dropping expired buffs
+     */
+    private void compact() throws IOException {
+        final long now = manager.getCurrentTick() + clockOffset;
+        closeStream();
+
+        final File temp = new File(file.getPath() + ".tmp");
+        open(new FileOutputStream(temp));
+        final Iterator<Map.Entry<UUID, Stored>> iterator = mirror.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<UUID, Stored> entry = iterator.next();
+            entry.getValue().dropExpired(now);
+            if (entry.getValue().types.isEmpty()) {
+                iterator.remove();
+                continue;
+            }
+            for (final Map.Entry<String, Map<String, StoredBuff>> type : entry.getValue().types.entrySet()) {
+                for (final StoredBuff buff : type.getValue().values()) {
+                    writePut(entry.getKey(), type.getKey(), buff);
+                }
+            }
+        }
+        writeTick();
+        final long snapshotSize = out.size();
+        closeStream();
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        // Appends keep using the string table written with the snapshot
+        compactAt = Math.max(MIN_COMPACT_BYTES, snapshotSize * 3);
+        open(new FileOutputStream(file, true));
+    }
+
+    private void open(final FileOutputStream stream) throws IOException {
+        final boolean fresh = stream.getChannel().position() == 0;
+        out = new DataOutputStream(new BufferedOutputStream(stream));
+        if (fresh) {
+            ids.clear();
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+        }
+    }
+
+    private void closeStream() {
+        if (out == null) return;
+        try {
+            out.close();
+        } catch (IOException e) {
+            Logger.error("Failed to close buff file " + file.getName() + ": " + e.getMessage());
+        }
+        out = null;
+    }
+
+    private int string(final String value) throws IOException {
+        final Integer existing = ids.get(value);
+        if (existing != null) return existing;
+
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeByte(OP_STRING);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+
+        final int id = ids.size();
+        ids.put(value, id);
+        return id;
+    }
+
+    private void writeUuid(final UUID id) throws IOException {
+        out.writeLong(id.getMostSignificantBits());
+        out.writeLong(id.getLeastSignificantBits());
+    }
+
+    static void writeVarInt(final OutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    static int readVarInt(final ByteBuffer buffer) {
+        int value = 0;
+        int shift = 0;
+        byte read;
+        do {
+            read = buffer.get();
+            value |= (read & 0x7F) << shift;
+            shift += 7;
+        } while ((read & 0x80) != 0);
+        return value;
+    }
+
+    private static final class Op {
+        private final byte   op;
+        private final UUID   entity;
+        private final String type;
+        private final Buff   buff;
+        private final long   deadline;
+        private final int    stacks;
+        private final int    limit;
+
+        private Op(final byte op,
+                   final UUID entity,
+                   final String type,
+                   final Buff buff,
+                   final long deadline,
+                   final int stacks,
+                   final int limit) {
+            this.op = op;
+            this.entity = entity;
+            this.type = type;
+            this.buff = buff;
+            this.deadline = deadline;
+            this.stacks = stacks;
+            this.limit = limit;
+        }
+    }
+
+    private static final class Stored {
+        private final Map<String, Map<String, StoredBuff>> types = new HashMap<>();
+
+        private StoredBuff put(final String type,
+                               final Buff buff,
+                               final long deadline,
+                               final int stacks,
+                               final int limit) {
+            final Map<String, StoredBuff> buffs    = types.computeIfAbsent(type, t -> new HashMap<>());
+            final StoredBuff              previous = buffs.get(buff.getKey());
+            // Changing the duration doesn't know the limit, so the one from stacking is kept
+            final int        kept   = limit > 0 ? limit : previous == null ? stacks : previous.limit;
+            final StoredBuff stored = new StoredBuff(buff, deadline, stacks, Math.max(stacks, kept));
+            buffs.put(buff.getKey(), stored);
+            return stored;
+        }
+
+        private void dropExpired(final long now) {
+            types.values().removeIf(buffs -> {
+                buffs.values().removeIf(buff -> buff.deadline <= now);
+                return buffs.isEmpty();
+            });
+        }
+    }
+
+    private static final class StoredBuff {
+        private final Buff buff;
+        private final long deadline;
+        private final int  stacks;
+        private final int  limit;
+
+        private StoredBuff(final Buff buff, final long deadline, final int stacks, final int limit) {
+            this.buff = buff;
+            this.deadline = deadline;
+            this.stacks = stacks;
+            this.limit = limit;
+        }
+    }
+}
@@ -0,0 +1,446 @@
+/**
+ * Fabled
+ * studio.magemonkey.fabled.api.util.BuffRecorder
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Copyright (c) 2024 MageMonkeyStudio
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software") to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package studio.magemonkey.fabled.api.util;
+
+import studio.magemonkey.fabled.log.LogType;
+import studio.magemonkey.fabled.log.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records buff operations to a trace file, so the workload of a live server can be
+ * replayed headlessly by the BuffReplay benchmark.
+ * <p>
+ * Operations are stored in a fixed ring of primitive slots by the calling thread and
+ * written by a single background thread, so recording never waits on the disk. Threads
+ * claim slots with a compare and swap and publish them through a per-slot sequence, so
+ * recording threads never lock. When the writer falls behind and the ring is full,
+ * operations are dropped and counted instead of blocking the server.
+ * <p>
+ * The file starts with a magic number and version, followed by records that each start
+ * with an op byte. Strings and entities are written once and referenced by id afterwards,
+ * and the tick is only written when it changed since the previous record.
+ * <p>
+ * Bulk scales are recorded as one scale per value. Quits, unloads and evictions drop the
+ * buffs of an entity like clearing them and are recorded as a clear. Conditions that were
+ * only given in compiled form have no text to record, so those buffs are recorded without
+ * their condition and replay as plain buffs.
+ */
+final class BuffRecorder {
+    static final int  MAGIC   = 0x46425243; // FBRC
+    static final byte VERSION = 3;
+
+    static final byte OP_TICK       = 0;
+    static final byte OP_STRING     = 1;
+    static final byte OP_ENTITY     = 2;
+    static final byte OP_ADD        = 3;
+    static final byte OP_OVERWRITE  = 4;
+    static final byte OP_CLEAR_TYPE = 5;
+    static final byte OP_CLEAR      = 6;
+    static final byte OP_EXPIRE     = 7;
+    static final byte OP_SCALE_KEY  = 8;
+    static final byte OP_SCALE_NAME = 9;
+    static final byte OP_REFRESH    = 10;
+    static final byte OP_EXTEND     = 11;
+    static final byte OP_STACK      = 12;
+    static final byte OP_REMOVE     = 13;
+    static final byte OP_DECAY      = 14;
+    static final byte OP_CONDITION  = 15;
+
+    private static final int CAPACITY     = 1 << 16;
+    private static final int FLUSH_MILLIS = 50;
+
+    private final File   file;
+    private final Thread writer;
+
+    // Ring of operations. A slot is filled by the thread that claimed its position and
+    // handed to the writer by storing the position + 1 as the sequence of the slot.
+    private final    byte[]          ops       = new byte[CAPACITY];
+    private final    long[]          ticks     = new long[CAPACITY];
+    private final    UUID[]          entities  = new UUID[CAPACITY];
+    private final    String[]        names     = new String[CAPACITY];
+    private final    String[]        keys      = new String[CAPACITY];
+    private final    double[]        values    = new double[CAPACITY];
+    private final    double[]        ends      = new double[CAPACITY];
+    private final    String[]        texts     = new String[CAPACITY];
+    private final    boolean[]       percents  = new boolean[CAPACITY];
+    private final    int[]           counts    = new int[CAPACITY];
+    private final    int[]           limits    = new int[CAPACITY];
+    private final    AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private final    AtomicLong      head      = new AtomicLong();
+    private volatile long            tail;
+    private final    LongAdder       dropped   = new LongAdder();
+
+    private final Map<String, Integer> stringIds = new HashMap<>();
+    private final Map<UUID, Integer>   entityIds = new HashMap<>();
+
+    private volatile boolean          running = true;
+    private          DataOutputStream out;
+    private          long             lastTick;
+
+    BuffRecorder(final File file) {
+        this.file = file;
+        this.writer = new Thread(this::run, "Fabled-BuffRecorder");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Records a buff that was added or overwritten
+     *
+     * @param entity   entity UUID
+     * @param type     type of the buff
+     * @param buff     buff details
+     * @param ticks    duration of the buff
+     * @param replaced whether the buff overwrote an active one
+     */
+    void add(final UUID entity, final BuffKey type, final Buff buff, final int ticks, final boolean replaced) {
+        final byte op = replaced ? OP_OVERWRITE : OP_ADD;
+        record(op, entity, type.getName(), buff.getKey(), buff.getValue(), buff.isPercent(), ticks, 0);
+    }
+
+    /**
+     * Records a buff whose duration was restarted or extended in place
+     *
+     * @param entity entity UUID
+     * @param type   type of the buff
+     * @param key    key of the buff
+     * @param ticks  new duration, or the ticks added to it
+     * @param extend whether the duration was extended rather than restarted
+     */
+    void deadline(final UUID entity, final BuffKey type, final String key, final int ticks, final boolean extend) {
+        record(extend ? OP_EXTEND : OP_REFRESH, entity, type.getName(), key, 0, false, ticks, 0);
+    }
+
+    /**
+     * Records a stack added to an active buff. Stacking a buff that wasn't active
+     * is recorded as an add.
+     *
+     * @param entity    entity UUID
+     * @param type      type of the buff
+     * @param buff      buff details of a single stack
+     * @param ticks     duration of the buff
+     * @param maxStacks maximum number of stacks
+     */
+    void stack(final UUID entity, final BuffKey type, final Buff buff, final int ticks, final int maxStacks) {
+        record(OP_STACK, entity, type.getName(), buff.getKey(), buff.getValue(), buff.isPercent(), ticks, maxStacks);
+    }
+
+    /**
+     * Records a buff whose value decays over its duration
+     *
+     * @param entity   entity UUID
+     * @param type     type of the buff
+     * @param buff     buff details, its value is the value at the start
+     * @param endValue value at the end of the duration
+     * @param ticks    duration of the buff
+     * @param curve    shape of the change
+     */
+    void decay(final UUID entity,
+               final BuffKey type,
+               final Buff buff,
+               final double endValue,
+               final int ticks,
+               final BuffCurve curve) {
+        record(OP_DECAY, entity, type.getName(), buff.getKey(), buff.getValue(), buff.isPercent(), ticks, 0,
+                endValue, curve.name());
+    }
+
+    /**
+     * Records a buff that only applies under a condition
+     *
+     * @param entity    entity UUID
+     * @param type      type of the buff
+     * @param buff      buff details
+     * @param ticks     duration of the buff
+     * @param condition text form of the condition, or null if it was only given compiled
+     */
+    void condition(final UUID entity, final BuffKey type, final Buff buff, final int ticks, final String condition) {
+        record(OP_CONDITION, entity, type.getName(), buff.getKey(), buff.getValue(), buff.isPercent(), ticks, 0,
+                0, condition == null ? "" : condition);
+    }
+
+    /**
+     * Records that the buffs with a key were removed from an entity, regardless of their type
+     *
+     * @param entity entity UUID
+     * @param key    key of the removed buffs
+     */
+    void remove(final UUID entity, final String key) {
+        record(OP_REMOVE, entity, null, key, 0, false, 0, 0);
+    }
+
+    /**
+     * Records that all buffs of a type were removed
+     *
+     * @param entity entity UUID
+     * @param type   removed type
+     */
+    void clearType(final UUID entity, final BuffKey type) {
+        record(OP_CLEAR_TYPE, entity, type.getName(), null, 0, false, 0, 0);
+    }
+
+    /**
+     * Records that all buffs of an entity were removed
+     *
+     * @param entity entity UUID
+     */
+    void clear(final UUID entity) {
+        record(OP_CLEAR, entity, null, null, 0, false, 0, 0);
+    }
+
+    /**
+     * Records buffs that expired. These aren't replayed, the replayed buffs expire on their own.
+     *
+     * @param entity entity UUID
+     * @param count  number of expired buffs
+     */
+    void expired(final UUID entity, final int count) {
+        record(OP_EXPIRE, entity, null, null, 0, false, count, 0);
+    }
+
+    /**
+     * Records a value scaled by a resolved key or a type name
+     *
+     * @param entity entity UUID
+     * @param name   name of the key or type
+     * @param key    whether the value was scaled by a resolved key
+     * @param value  base amount
+     */
+    void scale(final UUID entity, final String name, final boolean key, final double value) {
+        record(key ? OP_SCALE_KEY : OP_SCALE_NAME, entity, name, null, value, false, 0, 0);
+    }
+
+    private void record(final byte op,
+                        final UUID entity,
+                        final String name,
+                        final String key,
+                        final double value,
+                        final boolean percent,
+                        final int count,
+                        final int limit) {
+        record(op, entity, name, key, value, percent, count, limit, 0, null);
+    }
+
+    private void record(final byte op,
+                        final UUID entity,
+                        final String name,
+                        final String key,
+                        final double value,
+                        final boolean percent,
+                        final int count,
+                        final int limit,
+                        final double end,
+                        final String text) {
+        long position;
+        do {
+            position = head.get();
+            if (position - tail >= CAPACITY) {
+                dropped.increment();
+                return;
+            }
+        } while (!head.compareAndSet(position, position + 1));
+
+        final int slot = (int) (position & (CAPACITY - 1));
+        ops[slot] = op;
+        ticks[slot] = BuffManager.getInstance().getCurrentTick();
+        entities[slot] = entity;
+        names[slot] = name;
+        keys[slot] = key;
+        values[slot] = value;
+        percents[slot] = percent;
+        counts[slot] = count;
+        limits[slot] = limit;
+        ends[slot] = end;
+        texts[slot] = text;
+        sequences.lazySet(slot, position + 1);
+    }
+
+    /**
+     * Writes all recorded operations and closes the trace. This blocks until the
+     * background thread finished.
+     */
+    void close() {
+        running = false;
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            while (true) {
+                final boolean last = !running;
+                drain();
+                out.flush();
+
+                if (last) break;
+                Thread.sleep(FLUSH_MILLIS);
+            }
+        } catch (IOException e) {
+            Logger.error("Failed to record buffs to " + file.getName() + ": " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeStream();
+        }
+
+        final long lost = dropped.sum();
+        if (lost > 0) {
+            Logger.log(LogType.BUFF, 1, "Dropped " + lost + " buff operations while recording to " + file.getName());
+        }
+    }
+
+    /**
+     * Writes every published operation in order. Stops at the first slot that was claimed
+     * but not filled yet, the writer picks it up on its next pass.
+     */
+    private void drain() throws IOException {
+        long position = tail;
+        while (true) {
+            final int slot = (int) (position & (CAPACITY - 1));
+            if (sequences.get(slot) != position + 1) break;
+            write(slot);
+            tail = ++position;
+        }
+    }
+
+    private void write(final int slot) throws IOException {
+        if (ticks[slot] != lastTick) {
+            out.writeByte(OP_TICK);
+            out.writeLong(ticks[slot]);
+            lastTick = ticks[slot];
+        }
+
+        final int entityId = entity(entities[slot]);
+        final int nameId   = names[slot] == null ? 0 : string(names[slot]);
+        final int keyId    = keys[slot] == null ? 0 : string(keys[slot]);
+        final int textId   = texts[slot] == null ? 0 : string(texts[slot]);
+
+        final byte op = ops[slot];
+        out.writeByte(op);
+        BuffPersistence.writeVarInt(out, entityId);
+        switch (op) {
+            case OP_ADD:
+            case OP_OVERWRITE:
+            case OP_STACK:
+            case OP_DECAY:
+            case OP_CONDITION:
+                BuffPersistence.writeVarInt(out, nameId);
+                BuffPersistence.writeVarInt(out, keyId);
+                out.writeDouble(values[slot]);
+                out.writeBoolean(percents[slot]);
+                BuffPersistence.writeVarInt(out, counts[slot]);
+                if (op == OP_STACK) BuffPersistence.writeVarInt(out, limits[slot]);
+                if (op == OP_DECAY) out.writeDouble(ends[slot]);
+                if (op == OP_DECAY || op == OP_CONDITION) BuffPersistence.writeVarInt(out, textId);
+                break;
+            case OP_REMOVE:
+                BuffPersistence.writeVarInt(out, keyId);
+                break;
+            case OP_REFRESH:
+            case OP_EXTEND:
+                BuffPersistence.writeVarInt(out, nameId);
+                BuffPersistence.writeVarInt(out, keyId);
+                BuffPersistence.writeVarInt(out, counts[slot]);
+                break;
+            case OP_CLEAR_TYPE:
+                BuffPersistence.writeVarInt(out, nameId);
+                break;
+            case OP_EXPIRE:
+                BuffPersistence.writeVarInt(out, counts[slot]);
+                break;
+            case OP_SCALE_KEY:
+            case OP_SCALE_NAME:
+                BuffPersistence.writeVarInt(out, nameId);
+                out.writeDouble(values[slot]);
+                break;
+            default:
+                break;
+        }
+
+        // Let go of the references, the slot may not be reused for a while
+        entities[slot] = null;
+        names[slot] = null;
+        keys[slot] = null;
+        texts[slot] = null;
+    }
+
+    private int string(final String value) throws IOException {
+        final Integer existing = stringIds.get(value);
+        if (existing != null) return existing;
+
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeByte(OP_STRING);
+        BuffPersistence.writeVarInt(out, bytes.length);
+        out.write(bytes);
+
+        final int id = stringIds.size();
+        stringIds.put(value, id);
+        return id;
+    }
+
+    private int entity(final UUID value) throws IOException {
+        final Integer existing = entityIds.get(value);
+        if (existing != null) return existing;
+
+        out.writeByte(OP_ENTITY);
+        out.writeLong(value.getMostSignificantBits());
+        out.writeLong(value.getLeastSignificantBits());
+
+        final int id = entityIds.size();
+        entityIds.put(value, id);
+        return id;
+    }
+
+    private void closeStream() {
+        if (out == null) return;
+        try {
+            out.close();
+        } catch (IOException e) {
+            Logger.error("Failed to close buff trace " + file.getName() + ": " + e.getMessage());
+        }
+        out = null;
+    }
+}
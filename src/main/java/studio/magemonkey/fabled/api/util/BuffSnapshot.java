@@ -0,0 +1,612 @@
+/**
+ * Fabled
+ * studio.magemonkey.fabled.api.util.BuffSnapshot
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Copyright (c) 2024 MageMonkeyStudio
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software") to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package studio.magemonkey.fabled.api.util;
+
+import org.bukkit.entity.Player;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable view of the buffs on an entity. {@link BuffData} publishes a new snapshot
+ * whenever its buffs change, so a snapshot can be read from any thread without locking
+ * and always reflects one consistent state.
+ * <p>
+ * Types are stored in parallel arrays sorted by {@link BuffKey#getId()}, together with
+ * the combined multiplier and flat bonus of their buffs. Each type also stores the totals
+ * including all categories above it, so resolving a deep category only needs to walk up
+ * to the closest category with buffs.
+ * <p>
+ * Decaying and conditional buffs depend on the current tick or the player values are
+ * applied for, so they are kept out of the totals and evaluated whenever they are read.
+ * Snapshots without them never pay for that.
+ */
+public final class BuffSnapshot {
+    /**
+     * Snapshot of an entity without any buffs
+     */
+    public static final BuffSnapshot EMPTY =
+            create(new BuffKey[0], new double[0], new double[0], new Buff[0][], new int[0][], new Dynamic[0][]);
+
+    private static final int LINEAR_SEARCH = 8;
+
+    private final BuffKey[]     keys;
+    private final double[]      multipliers;
+    private final double[]      bonuses;
+    private final double[]      totalMultipliers;
+    private final double[]      totalBonuses;
+    private final Buff[][]      buffs;
+    private final int[][]       stacks;
+    private final Dynamic[][]   dynamics;
+    private final boolean       dynamic;
+
+    private BuffSnapshot(final BuffKey[] keys,
+                         final double[] multipliers,
+                         final double[] bonuses,
+                         final double[] totalMultipliers,
+                         final double[] totalBonuses,
+                         final Buff[][] buffs,
+                         final int[][] stacks,
+                         final Dynamic[][] dynamics,
+                         final boolean dynamic) {
+        this.keys = keys;
+        this.multipliers = multipliers;
+        this.bonuses = bonuses;
+        this.totalMultipliers = totalMultipliers;
+        this.totalBonuses = totalBonuses;
+        this.buffs = buffs;
+        this.stacks = stacks;
+        this.dynamics = dynamics;
+        this.dynamic = dynamic;
+    }
+
+    /**
+     * Creates a snapshot, aggregating the values of every type with the values of
+     * all categories above it
+     */
+    private static BuffSnapshot create(final BuffKey[] keys,
+                                       final double[] multipliers,
+                                       final double[] bonuses,
+                                       final Buff[][] buffs,
+                                       final int[][] stacks,
+                                       final Dynamic[][] dynamics) {
+        final double[] totalMultipliers = new double[keys.length];
+        final double[] totalBonuses     = new double[keys.length];
+        boolean        dynamic          = false;
+        for (int i = 0; i < keys.length; i++) {
+            dynamic |= dynamics[i] != null;
+            double multiplier = multipliers[i];
+            double bonus      = bonuses[i];
+            for (BuffKey type = keys[i].getParent(); type != null; type = type.getParent()) {
+                final int index = indexOf(keys, type);
+                if (index >= 0) {
+                    multiplier *= multipliers[index];
+                    bonus += bonuses[index];
+                }
+            }
+            totalMultipliers[i] = multiplier;
+            totalBonuses[i] = bonus;
+        }
+        return new BuffSnapshot(keys, multipliers, bonuses, totalMultipliers, totalBonuses, buffs, stacks, dynamics, dynamic);
+    }
+
+    /**
+     * @return true if there are no active buffs
+     */
+    public boolean isEmpty() {
+        return keys.length == 0;
+    }
+
+    /**
+     * @return the types with active buffs
+     */
+    public List<BuffKey> getTypes() {
+        return Collections.unmodifiableList(Arrays.asList(keys));
+    }
+
+    /**
+     * @param type type of buff
+     * @return true if there is at least one buff of exactly the type
+     */
+    public boolean isActive(final BuffKey type) {
+        return indexOf(type) >= 0;
+    }
+
+    /**
+     * @param type type of buff
+     * @return the buffs of exactly the type
+     */
+    public List<Buff> getBuffs(final BuffKey type) {
+        final int index = indexOf(type);
+        return index < 0 ? Collections.emptyList() : Collections.unmodifiableList(Arrays.asList(buffs[index]));
+    }
+
+    /**
+     * @param type type of buff
+     * @param key  key of the buff
+     * @return the number of stacks of the buff, 0 if there is no such buff
+     */
+    public int getStacks(final BuffKey type, final String key) {
+        final int index = indexOf(type);
+        if (index < 0) return 0;
+
+        final Buff[] typeBuffs = buffs[index];
+        for (int i = 0; i < typeBuffs.length; i++) {
+            if (typeBuffs[i].getKey().equals(key)) return stacks(index, i);
+        }
+        return 0;
+    }
+
+    /**
+     * Retrieves the combined multiplier of all buffs of the key, including
+     * the buffs of every category the key is nested in
+     *
+     * @param key resolved buff key
+     * @return total multiplier
+     */
+    public double getMultiplier(final BuffKey key) {
+        return getMultiplier(key, null);
+    }
+
+    /**
+     * Retrieves the combined multiplier of all buffs of the key that apply for
+     * the player, including the buffs of every category the key is nested in
+     *
+     * @param key    resolved buff key
+     * @param player player the buffs are applied for, if any
+     * @return total multiplier
+     */
+    public double getMultiplier(final BuffKey key, final Player player) {
+        final int index      = resolve(key);
+        double    multiplier = index < 0 ? 1 : totalMultipliers[index];
+        if (dynamic) multiplier *= dynamicMultiplier(key, true, BuffManager.getInstance().getCurrentTick(), player);
+        // Negatives aren't well received by bukkit, so return 0 instead
+        return Math.max(0, multiplier);
+    }
+
+    /**
+     * Retrieves the combined flat bonus of all buffs of the key, including
+     * the buffs of every category the key is nested in
+     *
+     * @param key resolved buff key
+     * @return total flat bonus
+     */
+    public double getFlatBonus(final BuffKey key) {
+        return getFlatBonus(key, null);
+    }
+
+    /**
+     * Retrieves the combined flat bonus of all buffs of the key that apply for
+     * the player, including the buffs of every category the key is nested in
+     *
+     * @param key    resolved buff key
+     * @param player player the buffs are applied for, if any
+     * @return total flat bonus
+     */
+    public double getFlatBonus(final BuffKey key, final Player player) {
+        final int index = resolve(key);
+        double    bonus = index < 0 ? 0 : totalBonuses[index];
+        if (dynamic) bonus += dynamicBonus(key, true, BuffManager.getInstance().getCurrentTick(), player);
+        return bonus;
+    }
+
+    /**
+     * Applies all buffs of the key to the specified value, including
+     * the buffs of every category the key is nested in
+     *
+     * @param key   resolved buff key
+     * @param value value to modify
+     * @return value after all buff applications
+     */
+    public double apply(final BuffKey key, final double value) {
+        return apply(key, value, null);
+    }
+
+    /**
+     * Applies all buffs of the key that apply for the player to the specified value,
+     * including the buffs of every category the key is nested in
+     *
+     * @param key    resolved buff key
+     * @param value  value to modify
+     * @param player player the value is applied for, if any
+     * @return value after all buff applications
+     */
+    public double apply(final BuffKey key, final double value, final Player player) {
+        // Ignore zeroed out values that shouldn't get buffs
+        if (value <= 0 || key == null) return value;
+
+        final int index      = resolve(key);
+        double    multiplier = index < 0 ? 1 : totalMultipliers[index];
+        double    bonus      = index < 0 ? 0 : totalBonuses[index];
+        if (dynamic) {
+            final long now = BuffManager.getInstance().getCurrentTick();
+            multiplier *= dynamicMultiplier(key, true, now, player);
+            bonus += dynamicBonus(key, true, now, player);
+        }
+
+        // Negatives aren't well received by bukkit, so return 0 instead
+        return multiplier <= 0 ? 0 : Math.max(0, value * multiplier + bonus);
+    }
+
+    /**
+     * Applies all buffs of the key that apply for the player to the specified value, including
+     * the buffs of every category the key is nested in, and fills the breakdown with the totals
+     * and the result. Without contributors and decaying or conditional buffs this only reads
+     * the precomputed totals, otherwise it walks the buffs of the key and its categories once.
+     *
+     * @param key    resolved buff key
+     * @param value  value to modify
+     * @param player player the value is applied for, if any
+     * @param result breakdown to fill, replacing its previous contents
+     * @return the filled breakdown
+     */
+    public BuffBreakdown breakdown(final BuffKey key,
+                                   final double value,
+                                   final Player player,
+                                   final BuffBreakdown result) {
+        result.reset(key, value);
+        if (key == null) return result;
+
+        final int index = resolve(key);
+        if (index < 0) {
+            result.complete(1, 0);
+            return result;
+        }
+        if (!dynamic && !result.isCollectContributors()) {
+            result.complete(totalMultipliers[index], totalBonuses[index]);
+            return result;
+        }
+
+        // The totals only lack the dynamic buffs, which are found while walking the contributors
+        final long now        = BuffManager.getInstance().getCurrentTick();
+        double     multiplier = totalMultipliers[index];
+        double     bonus      = totalBonuses[index];
+        for (BuffKey type = keys[index]; type != null; type = type.getParent()) {
+            final int typeIndex = indexOf(keys, type);
+            if (typeIndex < 0) continue;
+
+            final Buff[]    typeBuffs    = buffs[typeIndex];
+            final Dynamic[] typeDynamics = dynamics[typeIndex];
+            int             next         = 0;
+            for (int i = 0; i < typeBuffs.length; i++) {
+                final Buff buff = typeBuffs[i];
+                if (typeDynamics != null && next < typeDynamics.length && typeDynamics[next].buff == buff) {
+                    final Dynamic entry = typeDynamics[next++];
+                    if (!entry.appliesTo(player)) continue;
+
+                    final double current = entry.valueAt(now);
+                    if (entry.percent) {
+                        multiplier *= current;
+                    } else {
+                        bonus += current;
+                    }
+                    if (result.isCollectContributors()) result.contribute(type, buff, current);
+                } else if (result.isCollectContributors()) {
+                    result.contribute(type, buff, value(buff, stacks[typeIndex], i));
+                }
+            }
+        }
+        result.complete(multiplier, bonus);
+        return result;
+    }
+
+    /**
+     * @param key resolved buff key
+     * @return true if the snapshot holds buffs of the key or any of its categories
+     */
+    boolean inherits(final BuffKey key) {
+        for (final BuffKey type : keys) {
+            for (BuffKey current = type; current != null; current = current.getParent()) {
+                if (current == key) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return a copy of this snapshot with the totals computed along the current parent links
+     */
+    BuffSnapshot relink() {
+        return keys.length == 0 ? this : create(keys, multipliers, bonuses, buffs, stacks, dynamics);
+    }
+
+    /**
+     * @return true if the snapshot holds decaying or conditional buffs that have to be evaluated on read
+     */
+    boolean isDynamic() {
+        return dynamic;
+    }
+
+    /**
+     * Combines the current multipliers of the decaying and conditional buffs of a key
+     *
+     * @param key     resolved buff key
+     * @param inherit whether to include the categories the key is nested in
+     * @param now     current tick of the expiry wheel
+     * @param player  player the buffs are applied for, if any
+     * @return combined multiplier of the buffs that apply
+     */
+    double dynamicMultiplier(final BuffKey key, final boolean inherit, final long now, final Player player) {
+        double multiplier = 1;
+        for (BuffKey type = key; type != null; type = inherit ? type.getParent() : null) {
+            final int index = indexOf(keys, type);
+            if (index < 0 || dynamics[index] == null) continue;
+
+            for (final Dynamic buff : dynamics[index]) {
+                if (buff.percent && buff.appliesTo(player)) multiplier *= buff.valueAt(now);
+            }
+        }
+        return multiplier;
+    }
+
+    /**
+     * Combines the current flat bonuses of the decaying and conditional buffs of a key
+     *
+     * @param key     resolved buff key
+     * @param inherit whether to include the categories the key is nested in
+     * @param now     current tick of the expiry wheel
+     * @param player  player the buffs are applied for, if any
+     * @return combined flat bonus of the buffs that apply
+     */
+    double dynamicBonus(final BuffKey key, final boolean inherit, final long now, final Player player) {
+        double bonus = 0;
+        for (BuffKey type = key; type != null; type = inherit ? type.getParent() : null) {
+            final int index = indexOf(keys, type);
+            if (index < 0 || dynamics[index] == null) continue;
+
+            for (final Dynamic buff : dynamics[index]) {
+                if (!buff.percent && buff.appliesTo(player)) bonus += buff.valueAt(now);
+            }
+        }
+        return bonus;
+    }
+
+    /**
+     * Finds the closest type with buffs, starting at the key itself and walking up
+     * its categories. Its totals hold the values of everything above it as well.
+     *
+     * @param key resolved buff key
+     * @return index of the closest type with buffs or -1 if none of them have buffs
+     */
+    int resolve(final BuffKey key) {
+        for (BuffKey type = key; type != null; type = type.getParent()) {
+            final int index = indexOf(keys, type);
+            if (index >= 0) return index;
+        }
+        return -1;
+    }
+
+    int indexOf(final BuffKey type) {
+        return indexOf(keys, type);
+    }
+
+    private static int indexOf(final BuffKey[] keys, final BuffKey type) {
+        if (type == null) return -1;
+
+        if (keys.length <= LINEAR_SEARCH) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == type) return i;
+            }
+            return -1;
+        }
+
+        int low  = 0;
+        int high = keys.length - 1;
+        final int id = type.getId();
+        while (low <= high) {
+            final int mid   = (low + high) >>> 1;
+            final int midId = keys[mid].getId();
+            if (midId < id) low = mid + 1;
+            else if (midId > id) high = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    double multiplier(final int index) {
+        return multipliers[index];
+    }
+
+    double bonus(final int index) {
+        return bonuses[index];
+    }
+
+    double totalMultiplier(final int index) {
+        return totalMultipliers[index];
+    }
+
+    double totalBonus(final int index) {
+        return totalBonuses[index];
+    }
+
+    int stacks(final int index, final int buff) {
+        return stacks[index] == null ? 1 : stacks[index][buff];
+    }
+
+    /**
+     * Creates a copy of this snapshot with the buffs of one type replaced. Stacked
+     * buffs count once per stack, so percent buffs multiply and flat buffs add up.
+     *
+     * @param type           type that changed
+     * @param typeBuffs      current buffs of the type, empty to remove the type
+     * @param typeStacks     stacks of each buff, or null if none of them are stacked
+     * @param typeDecays     curve of each buff, or null if none of them decay
+     * @param typeConditions condition of each buff, or null if all of them always apply
+     * @return the new snapshot
+     */
+    BuffSnapshot with(final BuffKey type,
+                      final Buff[] typeBuffs,
+                      final int[] typeStacks,
+                      final BuffDecay[] typeDecays,
+                      final BuffCondition[] typeConditions) {
+        int index = indexOf(type);
+        if (typeBuffs.length == 0) {
+            return index < 0 ? this : without(index);
+        }
+
+        double multiplier   = 1;
+        double bonus        = 0;
+        int    dynamicCount = 0;
+        for (int i = 0; i < typeBuffs.length; i++) {
+            if (typeDecays != null && typeDecays[i] != null || typeConditions != null && typeConditions[i] != null) {
+                dynamicCount++;
+                continue;
+            }
+
+            final Buff buff = typeBuffs[i];
+            if (buff.isPercent()) {
+                multiplier *= value(buff, typeStacks, i);
+            } else {
+                bonus += value(buff, typeStacks, i);
+            }
+        }
+
+        final BuffKey[]     newKeys;
+        final double[]      newMultipliers;
+        final double[]      newBonuses;
+        final Buff[][]      newBuffs;
+        final int[][]       newStacks;
+        final Dynamic[][]   newDynamics;
+        if (index >= 0) {
+            newKeys = keys;
+            newMultipliers = multipliers.clone();
+            newBonuses = bonuses.clone();
+            newBuffs = buffs.clone();
+            newStacks = stacks.clone();
+            newDynamics = dynamics.clone();
+        } else {
+            // Insert the type at its sorted position
+            index = 0;
+            while (index < keys.length && keys[index].getId() < type.getId()) index++;
+            newKeys = insert(keys, index, new BuffKey[keys.length + 1]);
+            newMultipliers = insert(multipliers, index);
+            newBonuses = insert(bonuses, index);
+            newBuffs = insert(buffs, index, new Buff[buffs.length + 1][]);
+            newStacks = insert(stacks, index, new int[stacks.length + 1][]);
+            newDynamics = insert(dynamics, index, new Dynamic[dynamics.length + 1][]);
+            newKeys[index] = type;
+        }
+        newMultipliers[index] = multiplier;
+        newBonuses[index] = bonus;
+        newBuffs[index] = typeBuffs;
+        newStacks[index] = typeStacks;
+        newDynamics[index] = dynamicCount == 0
+                ? null
+                : dynamics(typeBuffs, typeStacks, typeDecays, typeConditions, dynamicCount);
+        return create(newKeys, newMultipliers, newBonuses, newBuffs, newStacks, newDynamics);
+    }
+
+    /**
+     * @return the value of a buff with all of its stacks
+     */
+    private static double value(final Buff buff, final int[] typeStacks, final int i) {
+        final int count = typeStacks == null ? 1 : typeStacks[i];
+        if (count == 1) return buff.getValue();
+        return buff.isPercent() ? Math.pow(buff.getValue(), count) : buff.getValue() * count;
+    }
+
+    private static Dynamic[] dynamics(final Buff[] typeBuffs,
+                                      final int[] typeStacks,
+                                      final BuffDecay[] typeDecays,
+                                      final BuffCondition[] typeConditions,
+                                      final int count) {
+        final Dynamic[] result = new Dynamic[count];
+        int             j      = 0;
+        for (int i = 0; i < typeBuffs.length; i++) {
+            final BuffDecay     decay     = typeDecays == null ? null : typeDecays[i];
+            final BuffCondition condition = typeConditions == null ? null : typeConditions[i];
+            if (decay != null || condition != null) {
+                result[j++] = new Dynamic(typeBuffs[i], value(typeBuffs[i], typeStacks, i), decay, condition);
+            }
+        }
+        return result;
+    }
+
+    private BuffSnapshot without(final int index) {
+        if (keys.length == 1) return EMPTY;
+        return create(remove(keys, index, new BuffKey[keys.length - 1]),
+                remove(multipliers, index),
+                remove(bonuses, index),
+                remove(buffs, index, new Buff[buffs.length - 1][]),
+                remove(stacks, index, new int[stacks.length - 1][]),
+                remove(dynamics, index, new Dynamic[dynamics.length - 1][]));
+    }
+
+    private static <T> T[] insert(final T[] source, final int index, final T[] target) {
+        System.arraycopy(source, 0, target, 0, index);
+        System.arraycopy(source, index, target, index + 1, source.length - index);
+        return target;
+    }
+
+    private static double[] insert(final double[] source, final int index) {
+        final double[] target = new double[source.length + 1];
+        System.arraycopy(source, 0, target, 0, index);
+        System.arraycopy(source, index, target, index + 1, source.length - index);
+        return target;
+    }
+
+    private static <T> T[] remove(final T[] source, final int index, final T[] target) {
+        System.arraycopy(source, 0, target, 0, index);
+        System.arraycopy(source, index + 1, target, index, source.length - index - 1);
+        return target;
+    }
+
+    private static double[] remove(final double[] source, final int index) {
+        final double[] target = new double[source.length - 1];
+        System.arraycopy(source, 0, target, 0, index);
+        System.arraycopy(source, index + 1, target, index, source.length - index - 1);
+        return target;
+    }
+
+    /**
+     * A buff whose value depends on the current tick or on the player it is applied for
+     */
+    private static final class Dynamic {
+        private final Buff          buff;
+        private final boolean       percent;
+        private final double        value;
+        private final BuffDecay     decay;
+        private final BuffCondition condition;
+
+        Dynamic(final Buff buff, final double value, final BuffDecay decay, final BuffCondition condition) {
+            this.buff = buff;
+            this.percent = buff.isPercent();
+            this.value = value;
+            this.decay = decay;
+            this.condition = condition;
+        }
+
+        boolean appliesTo(final Player player) {
+            return condition == null || condition.test(player);
+        }
+
+        double valueAt(final long now) {
+            return decay == null ? value : decay.valueAt(now);
+        }
+    }
+}
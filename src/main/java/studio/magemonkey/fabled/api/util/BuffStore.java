@@ -0,0 +1,654 @@
+/**
+ * Fabled
+ * studio.magemonkey.fabled.api.util.BuffStore
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Copyright (c) 2024 MageMonkeyStudio
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software") to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package studio.magemonkey.fabled.api.util;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Storage of the buffs on one entity. Most entities only carry one or two buffs, so
+ * buffs start out in small parallel arrays that cost a fraction of a map per type.
+ * Once an entity holds more than {@link #COMPACT_LIMIT} buffs, they are promoted to
+ * the hashed layout, which keeps lookups constant for heavily buffed entities.
+ * <p>
+ * Buffs are stored as references rather than split into key, value and percent columns.
+ * Every stored buff is also held by the published {@link BuffSnapshot}, so a reference
+ * is all the store adds per buff, while primitive columns would keep a second copy of
+ * each buff next to the snapshot and allocate a new buff whenever one is read.
+ * <p>
+ * Stores are not thread safe, {@link BuffData} guards them with its own lock.
+ */
+abstract class BuffStore {
+    static final int COMPACT_LIMIT = 8;
+
+    private static final Buff[] NO_BUFFS = new Buff[0];
+
+    /**
+     * Visits stored buffs
+     */
+    interface Visitor {
+        void visit(BuffKey type, Buff buff, long deadline);
+    }
+
+    /**
+     * Selects stored buffs to remove
+     */
+    interface Filter {
+        boolean remove(BuffKey type, Buff buff, long deadline);
+    }
+
+    static BuffStore create() {
+        return new Compact();
+    }
+
+    /**
+     * @return the number of stored buffs
+     */
+    abstract int size();
+
+    abstract boolean hasType(BuffKey type);
+
+    /**
+     * @param key key of the buff
+     * @return true if a buff with the key is stored under any type
+     */
+    abstract boolean hasBuff(String key);
+
+    /**
+     * @param type type of the buff
+     * @param key  key of the buff
+     * @return the stored buff or null if there is none
+     */
+    abstract Buff find(BuffKey type, String key);
+
+    /**
+     * @param type type of the buff
+     * @param key  key of the buff
+     * @return the tick the stored buff expires at, only valid if the buff exists
+     */
+    abstract long getDeadline(BuffKey type, String key);
+
+    /**
+     * @param type type of the buff
+     * @param key  key of the buff
+     * @return the stacks of the stored buff, only valid if the buff exists
+     */
+    abstract int getStacks(BuffKey type, String key);
+
+    /**
+     * Updates a stored buff in place
+     *
+     * @param type     type of the buff
+     * @param key      key of the buff
+     * @param deadline tick the buff expires at
+     * @param stacks   stacks of the buff
+     */
+    abstract void update(BuffKey type, String key, long deadline, int stacks);
+
+    /**
+     * @param type type of the buff
+     * @param key  key of the buff
+     * @return the curve of the stored buff, or null if its value is constant
+     */
+    abstract BuffDecay getDecay(BuffKey type, String key);
+
+    /**
+     * @param type type of the buff
+     * @param key  key of the buff
+     * @return the condition of the stored buff, or null if it always applies
+     */
+    abstract BuffCondition getCondition(BuffKey type, String key);
+
+    /**
+     * @param type  type of the buff
+     * @param key   key of the buff
+     * @param decay new curve of the stored buff
+     */
+    abstract void setDecay(BuffKey type, String key, BuffDecay decay);
+
+    /**
+     * Stores a buff with a single stack, replacing the buff of the same type and key
+     *
+     * @param type     type of the buff
+     * @param buff     buff details
+     * @param deadline tick the buff expires at
+     * @return true if a buff was replaced
+     */
+    boolean put(final BuffKey type, final Buff buff, final long deadline) {
+        return put(type, buff, deadline, null, null);
+    }
+
+    /**
+     * Stores a buff with a single stack, replacing the buff of the same type and key
+     *
+     * @param type      type of the buff
+     * @param buff      buff details
+     * @param deadline  tick the buff expires at
+     * @param decay     curve of the buff, or null if its value is constant
+     * @param condition condition the buff applies under, or null if it always applies
+     * @return true if a buff was replaced
+     */
+    abstract boolean put(BuffKey type, Buff buff, long deadline, BuffDecay decay, BuffCondition condition);
+
+    /**
+     * @param type type of buff
+     * @return the buffs of exactly the type, empty if there are none
+     */
+    abstract Buff[] get(BuffKey type);
+
+    /**
+     * @param type type of buff
+     * @return the stacks of the buffs of the type in the order of {@link #get(BuffKey)},
+     *         or null if none of them are stacked
+     */
+    abstract int[] getStacks(BuffKey type);
+
+    /**
+     * @param type type of buff
+     * @return the curves of the buffs of the type in the order of {@link #get(BuffKey)},
+     *         or null if all of them are constant
+     */
+    abstract BuffDecay[] getDecays(BuffKey type);
+
+    /**
+     * @param type type of buff
+     * @return the conditions of the buffs of the type in the order of {@link #get(BuffKey)},
+     *         or null if all of them always apply
+     */
+    abstract BuffCondition[] getConditions(BuffKey type);
+
+    abstract void forEach(Visitor visitor);
+
+    abstract void removeIf(Filter filter);
+
+    abstract void clear();
+
+    /**
+     * @return a store holding the same buffs that suits the current number of buffs
+     */
+    abstract BuffStore promote();
+
+    /**
+     * Parallel arrays searched linearly, for entities with few buffs
+     */
+    static final class Compact extends BuffStore {
+        private BuffKey[]       types     = new BuffKey[2];
+        private Buff[]          buffs     = new Buff[2];
+        private long[]          deadlines = new long[2];
+        // Only allocated once a buff is stacked, decays or has a condition
+        private int[]           stacks;
+        private BuffDecay[]     decays;
+        private BuffCondition[] conditions;
+        private int             size;
+
+        private int indexOf(final BuffKey type, final String key) {
+            for (int i = 0; i < size; i++) {
+                if (types[i] == type && buffs[i].getKey().equals(key)) return i;
+            }
+            return -1;
+        }
+
+        @Override
+        Buff find(final BuffKey type, final String key) {
+            final int index = indexOf(type, key);
+            return index < 0 ? null : buffs[index];
+        }
+
+        @Override
+        long getDeadline(final BuffKey type, final String key) {
+            return deadlines[indexOf(type, key)];
+        }
+
+        @Override
+        int getStacks(final BuffKey type, final String key) {
+            return stacks == null ? 1 : stacks[indexOf(type, key)];
+        }
+
+        @Override
+        void update(final BuffKey type, final String key, final long deadline, final int count) {
+            final int index = indexOf(type, key);
+            deadlines[index] = deadline;
+            if (count != 1 && stacks == null) {
+                stacks = new int[types.length];
+                Arrays.fill(stacks, 1);
+            }
+            if (stacks != null) stacks[index] = count;
+        }
+
+        @Override
+        BuffDecay getDecay(final BuffKey type, final String key) {
+            return decays == null ? null : decays[indexOf(type, key)];
+        }
+
+        @Override
+        BuffCondition getCondition(final BuffKey type, final String key) {
+            return conditions == null ? null : conditions[indexOf(type, key)];
+        }
+
+        @Override
+        void setDecay(final BuffKey type, final String key, final BuffDecay decay) {
+            if (decays == null) {
+                if (decay == null) return;
+                decays = new BuffDecay[types.length];
+            }
+            decays[indexOf(type, key)] = decay;
+        }
+
+        private void setCondition(final int index, final BuffCondition condition) {
+            if (conditions == null) {
+                if (condition == null) return;
+                conditions = new BuffCondition[types.length];
+            }
+            conditions[index] = condition;
+        }
+
+        @Override
+        int size() {
+            return size;
+        }
+
+        @Override
+        boolean hasType(final BuffKey type) {
+            for (int i = 0; i < size; i++) {
+                if (types[i] == type) return true;
+            }
+            return false;
+        }
+
+        @Override
+        boolean hasBuff(final String key) {
+            for (int i = 0; i < size; i++) {
+                if (buffs[i].getKey().equals(key)) return true;
+            }
+            return false;
+        }
+
+        @Override
+        boolean put(final BuffKey type,
+                    final Buff buff,
+                    final long deadline,
+                    final BuffDecay decay,
+                    final BuffCondition condition) {
+            final int index = indexOf(type, buff.getKey());
+            if (index >= 0) {
+                buffs[index] = buff;
+                deadlines[index] = deadline;
+                if (stacks != null) stacks[index] = 1;
+                setDecay(type, buff.getKey(), decay);
+                setCondition(index, condition);
+                return true;
+            }
+
+            if (size == types.length) {
+                types = Arrays.copyOf(types, size * 2);
+                buffs = Arrays.copyOf(buffs, size * 2);
+                deadlines = Arrays.copyOf(deadlines, size * 2);
+                if (stacks != null) stacks = Arrays.copyOf(stacks, size * 2);
+                if (decays != null) decays = Arrays.copyOf(decays, size * 2);
+                if (conditions != null) conditions = Arrays.copyOf(conditions, size * 2);
+            }
+            types[size] = type;
+            buffs[size] = buff;
+            deadlines[size] = deadline;
+            if (stacks != null) stacks[size] = 1;
+            size++;
+            setDecay(type, buff.getKey(), decay);
+            setCondition(size - 1, condition);
+            return false;
+        }
+
+        @Override
+        Buff[] get(final BuffKey type) {
+            int count = 0;
+            for (int i = 0; i < size; i++) {
+                if (types[i] == type) count++;
+            }
+            if (count == 0) return NO_BUFFS;
+
+            final Buff[] result = new Buff[count];
+            for (int i = 0, j = 0; j < count; i++) {
+                if (types[i] == type) result[j++] = buffs[i];
+            }
+            return result;
+        }
+
+        @Override
+        int[] getStacks(final BuffKey type) {
+            if (stacks == null) return null;
+
+            int     count   = 0;
+            boolean stacked = false;
+            for (int i = 0; i < size; i++) {
+                if (types[i] != type) continue;
+                count++;
+                stacked |= stacks[i] != 1;
+            }
+            if (!stacked) return null;
+
+            final int[] result = new int[count];
+            for (int i = 0, j = 0; j < count; i++) {
+                if (types[i] == type) result[j++] = stacks[i];
+            }
+            return result;
+        }
+
+        @Override
+        BuffDecay[] getDecays(final BuffKey type) {
+            if (decays == null) return null;
+
+            int     count    = 0;
+            boolean decaying = false;
+            for (int i = 0; i < size; i++) {
+                if (types[i] != type) continue;
+                count++;
+                decaying |= decays[i] != null;
+            }
+            if (!decaying) return null;
+
+            final BuffDecay[] result = new BuffDecay[count];
+            for (int i = 0, j = 0; j < count; i++) {
+                if (types[i] == type) result[j++] = decays[i];
+            }
+            return result;
+        }
+
+        @Override
+        BuffCondition[] getConditions(final BuffKey type) {
+            if (conditions == null) return null;
+
+            int     count       = 0;
+            boolean conditional = false;
+            for (int i = 0; i < size; i++) {
+                if (types[i] != type) continue;
+                count++;
+                conditional |= conditions[i] != null;
+            }
+            if (!conditional) return null;
+
+            final BuffCondition[] result = new BuffCondition[count];
+            for (int i = 0, j = 0; j < count; i++) {
+                if (types[i] == type) result[j++] = conditions[i];
+            }
+            return result;
+        }
+
+        @Override
+        void forEach(final Visitor visitor) {
+            for (int i = 0; i < size; i++) {
+                visitor.visit(types[i], buffs[i], deadlines[i]);
+            }
+        }
+
+        @Override
+        void removeIf(final Filter filter) {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                if (filter.remove(types[i], buffs[i], deadlines[i])) continue;
+
+                types[kept] = types[i];
+                buffs[kept] = buffs[i];
+                deadlines[kept] = deadlines[i];
+                if (stacks != null) stacks[kept] = stacks[i];
+                if (decays != null) decays[kept] = decays[i];
+                if (conditions != null) conditions[kept] = conditions[i];
+                kept++;
+            }
+            Arrays.fill(types, kept, size, null);
+            Arrays.fill(buffs, kept, size, null);
+            if (decays != null) Arrays.fill(decays, kept, size, null);
+            if (conditions != null) Arrays.fill(conditions, kept, size, null);
+            size = kept;
+        }
+
+        @Override
+        void clear() {
+            Arrays.fill(types, 0, size, null);
+            Arrays.fill(buffs, 0, size, null);
+            stacks = null;
+            decays = null;
+            conditions = null;
+            size = 0;
+        }
+
+        @Override
+        BuffStore promote() {
+            if (size <= COMPACT_LIMIT) return this;
+
+            final Hashed hashed = new Hashed();
+            for (int i = 0; i < size; i++) {
+                hashed.put(types[i],
+                        buffs[i],
+                        deadlines[i],
+                        decays == null ? null : decays[i],
+                        conditions == null ? null : conditions[i]);
+                if (stacks != null) hashed.update(types[i], buffs[i].getKey(), deadlines[i], stacks[i]);
+            }
+            return hashed;
+        }
+    }
+
+    /**
+     * Buffs hashed by type and key, for entities with many buffs
+     */
+    static final class Hashed extends BuffStore {
+        private final Map<BuffKey, Map<String, Entry>> buffs = new HashMap<>();
+        private       int                              size;
+
+        @Override
+        int size() {
+            return size;
+        }
+
+        @Override
+        boolean hasType(final BuffKey type) {
+            return buffs.containsKey(type);
+        }
+
+        @Override
+        boolean hasBuff(final String key) {
+            for (final Map<String, Entry> typeBuffs : buffs.values()) {
+                if (typeBuffs.containsKey(key)) return true;
+            }
+            return false;
+        }
+
+        @Override
+        Buff find(final BuffKey type, final String key) {
+            final Entry entry = entry(type, key);
+            return entry == null ? null : entry.buff;
+        }
+
+        @Override
+        long getDeadline(final BuffKey type, final String key) {
+            return entry(type, key).deadline;
+        }
+
+        @Override
+        int getStacks(final BuffKey type, final String key) {
+            return entry(type, key).stacks;
+        }
+
+        @Override
+        void update(final BuffKey type, final String key, final long deadline, final int count) {
+            final Entry entry = entry(type, key);
+            entry.deadline = deadline;
+            entry.stacks = count;
+        }
+
+        @Override
+        BuffDecay getDecay(final BuffKey type, final String key) {
+            return entry(type, key).decay;
+        }
+
+        @Override
+        BuffCondition getCondition(final BuffKey type, final String key) {
+            return entry(type, key).condition;
+        }
+
+        @Override
+        void setDecay(final BuffKey type, final String key, final BuffDecay decay) {
+            entry(type, key).decay = decay;
+        }
+
+        private Entry entry(final BuffKey type, final String key) {
+            final Map<String, Entry> typeBuffs = buffs.get(type);
+            return typeBuffs == null ? null : typeBuffs.get(key);
+        }
+
+        @Override
+        boolean put(final BuffKey type,
+                    final Buff buff,
+                    final long deadline,
+                    final BuffDecay decay,
+                    final BuffCondition condition) {
+            final Entry entry = new Entry(buff, deadline);
+            entry.decay = decay;
+            entry.condition = condition;
+
+            final Entry previous = buffs.computeIfAbsent(type, t -> new HashMap<>()).put(buff.getKey(), entry);
+            if (previous == null) size++;
+            return previous != null;
+        }
+
+        @Override
+        Buff[] get(final BuffKey type) {
+            final Map<String, Entry> typeBuffs = buffs.get(type);
+            if (typeBuffs == null) return NO_BUFFS;
+
+            final Buff[] result = new Buff[typeBuffs.size()];
+            int          i      = 0;
+            for (final Entry entry : typeBuffs.values()) {
+                result[i++] = entry.buff;
+            }
+            return result;
+        }
+
+        @Override
+        int[] getStacks(final BuffKey type) {
+            final Map<String, Entry> typeBuffs = buffs.get(type);
+            if (typeBuffs == null) return null;
+
+            int[] result = null;
+            int   i      = 0;
+            for (final Entry entry : typeBuffs.values()) {
+                if (entry.stacks != 1 && result == null) {
+                    result = new int[typeBuffs.size()];
+                    Arrays.fill(result, 0, i, 1);
+                }
+                if (result != null) result[i] = entry.stacks;
+                i++;
+            }
+            return result;
+        }
+
+        @Override
+        BuffDecay[] getDecays(final BuffKey type) {
+            final Map<String, Entry> typeBuffs = buffs.get(type);
+            if (typeBuffs == null) return null;
+
+            BuffDecay[] result = null;
+            int         i      = 0;
+            for (final Entry entry : typeBuffs.values()) {
+                if (entry.decay != null && result == null) result = new BuffDecay[typeBuffs.size()];
+                if (result != null) result[i] = entry.decay;
+                i++;
+            }
+            return result;
+        }
+
+        @Override
+        BuffCondition[] getConditions(final BuffKey type) {
+            final Map<String, Entry> typeBuffs = buffs.get(type);
+            if (typeBuffs == null) return null;
+
+            BuffCondition[] result = null;
+            int             i      = 0;
+            for (final Entry entry : typeBuffs.values()) {
+                if (entry.condition != null && result == null) result = new BuffCondition[typeBuffs.size()];
+                if (result != null) result[i] = entry.condition;
+                i++;
+            }
+            return result;
+        }
+
+        @Override
+        void forEach(final Visitor visitor) {
+            for (final Map.Entry<BuffKey, Map<String, Entry>> typeBuffs : buffs.entrySet()) {
+                for (final Entry entry : typeBuffs.getValue().values()) {
+                    visitor.visit(typeBuffs.getKey(), entry.buff, entry.deadline);
+                }
+            }
+        }
+
+        @Override
+        void removeIf(final Filter filter) {
+            final Iterator<Map.Entry<BuffKey, Map<String, Entry>>> typeIterator = buffs.entrySet().iterator();
+            while (typeIterator.hasNext()) {
+                final Map.Entry<BuffKey, Map<String, Entry>> typeBuffs = typeIterator.next();
+
+                final Iterator<Entry> iterator = typeBuffs.getValue().values().iterator();
+                while (iterator.hasNext()) {
+                    final Entry entry = iterator.next();
+                    if (filter.remove(typeBuffs.getKey(), entry.buff, entry.deadline)) {
+                        iterator.remove();
+                        size--;
+                    }
+                }
+                if (typeBuffs.getValue().isEmpty()) typeIterator.remove();
+            }
+        }
+
+        @Override
+        void clear() {
+            buffs.clear();
+            size = 0;
+        }
+
+        @Override
+        BuffStore promote() {
+            return this;
+        }
+    }
+
+    /**
+     * A buff along with the tick it expires at, its stacks, its curve and its condition
+     */
+    private static class Entry {
+        private final Buff          buff;
+        private       long          deadline;
+        private       int           stacks = 1;
+        private       BuffDecay     decay;
+        private       BuffCondition condition;
+
+        Entry(final Buff buff, final long deadline) {
+            this.buff = buff;
+            this.deadline = deadline;
+        }
+    }
+}
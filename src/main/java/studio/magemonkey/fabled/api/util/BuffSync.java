@@ -0,0 +1,419 @@
+/**
+ * Fabled
+ * studio.magemonkey.fabled.api.util.BuffSync
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Copyright (c) 2024 MageMonkeyStudio
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software") to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package studio.magemonkey.fabled.api.util;
+
+import studio.magemonkey.fabled.log.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Carries the buffs of players along when they move between the servers of a network.
+ * <p>
+ * Whenever the buffs of a type change on an online player, the remaining buffs of that
+ * type are captured at the end of the tick. When the player quits, all of their buffs are
+ * captured. The captures are batched, encoded and sent by a single background thread.
+ * Every server keeps the latest received buffs of each player and restores them when the
+ * player joins, with the time passed since the message was sent taken off their duration.
+ * Received buffs are forgotten once they ran out.
+ * <p>
+ * Each record carries the time the sending server took over the player. Records of a server
+ * the player already left are ignored once a newer server sent any, so a quit that reaches
+ * a server after the join on another one can't replace the newer state. Players that are
+ * online on a server are owned by it, which ignores records about them from everywhere else,
+ * including its own. This relies on the clocks of the servers being roughly in sync.
+ * <p>
+ * A message starts with a magic number, version and the time it was sent, followed by the
+ * strings it uses and one record per player. A record starts with the player and the time
+ * the sender took the player over, and either replaces all buffs of the
+ * player or only the types it lists, so a change only carries the types that changed.
+ * Remaining durations within a type are sorted and written as the difference to the
+ * previous one. Like the persistence log, this only covers buffs that can be recreated
+ * from their details, so decaying and conditional buffs stay on the server.
+ */
+final class BuffSync implements BuffChangeListener {
+    private static final int  MAGIC   = 0x46425359; // FBSY
+    private static final byte VERSION = 1;
+
+    private static final int FLUSH_MILLIS    = 100;
+    private static final int PRUNE_MILLIS    = 60_000;
+    private static final int MILLIS_PER_TICK = 50;
+
+    private final BuffManager           manager;
+    private final BuffTransport         transport;
+    private final BlockingQueue<Update> queue    = new LinkedBlockingQueue<>();
+    private final Map<UUID, Remote>     received = new ConcurrentHashMap<>();
+    private final Map<UUID, Long>       local    = new ConcurrentHashMap<>();
+    private final Thread                sender;
+
+    private volatile boolean running = true;
+
+    BuffSync(final BuffManager manager, final BuffTransport transport) {
+        this.manager = manager;
+        this.transport = transport;
+        transport.setReceiver(this::receive);
+        this.sender = new Thread(this::run, "Fabled-BuffSync");
+        this.sender.setDaemon(true);
+        this.sender.start();
+    }
+
+    /**
+     * Takes over a player, which starts sending their buff changes
+     *
+     * @param player UUID of the player
+     */
+    void track(final UUID player) {
+        takeOver(player);
+    }
+
+    /**
+     * Restores the buffs a player had on the server they came from and takes the player over
+     *
+     * @param player UUID of the player that joined
+     */
+    void join(final UUID player) {
+        final Remote remote = takeOver(player);
+        if (remote == null) return;
+
+        final long                           now   = System.currentTimeMillis();
+        final List<BuffManager.RestoredBuff> buffs = new ArrayList<>();
+        for (final Map.Entry<String, Received> type : remote.types.entrySet()) {
+            final Received stored  = type.getValue();
+            final int      elapsed = (int) ((now - stored.sentAt) / MILLIS_PER_TICK);
+            for (int i = 0; i < stored.buffs.length; i++) {
+                final int ticks = stored.ticks[i] - elapsed;
+                if (ticks > 0) buffs.add(new BuffManager.RestoredBuff(type.getKey(), stored.buffs[i], ticks));
+            }
+        }
+        if (!buffs.isEmpty()) manager.restore(Collections.singletonMap(player, buffs));
+    }
+
+    /**
+     * @param player UUID of the player
+     * @return the buffs received for the player before taking it over, or null if there are none
+     */
+    private Remote takeOver(final UUID player) {
+        // Owning the player first makes sure records received from now on are ignored
+        local.put(player, System.currentTimeMillis());
+        manager.subscribe(player, this);
+        return received.remove(player);
+    }
+
+    /**
+     * Sends all buffs of a player that leaves the server. This has to be
+     * called before the buff data of the player is dropped.
+     *
+     * @param player UUID of the player that quit
+     */
+    void quit(final UUID player) {
+        manager.unsubscribe(player, this);
+        final Long since = local.remove(player);
+        if (since != null) queue.add(capture(player, since, null));
+
+        // Anything received while the player was here is outdated, the quit record replaces it everywhere
+        received.remove(player);
+    }
+
+    @Override
+    public void onChange(final BuffChange change) {
+        final Long since = local.get(change.getEntityId());
+        if (since != null) queue.add(capture(change.getEntityId(), since, change.getType()));
+    }
+
+    /**
+     * Sends everything that is still queued and stops syncing. This blocks
+     * until the background thread finished.
+     */
+    void close() {
+        running = false;
+        try {
+            sender.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        transport.close();
+    }
+
+    /**
+     * Captures the current buffs of a player
+     *
+     * @param player UUID of the player
+     * @param since  time this server took the player over
+     * @param type   type to capture, or null to capture all buffs
+     * @return the captured buffs
+     */
+    private Update capture(final UUID player, final long since, final BuffKey type) {
+        final Update update = new Update(player, since, type == null);
+        if (type != null) update.types.put(type.getName(), new ArrayList<>());
+
+        final BuffData data = manager.getLoadedData(player);
+        if (data == null) return update;
+        final long now = manager.getCurrentTick();
+        data.forEachPlain(type, (buffType, buff, deadline) -> {
+            if (deadline <= now) return;
+            update.types.computeIfAbsent(buffType.getName(), name -> new ArrayList<>())
+                    .add(new Timed(buff, (int) (deadline - now)));
+        });
+        return update;
+    }
+
+    private void run() {
+        long nextPrune = System.currentTimeMillis() + PRUNE_MILLIS;
+        while (running || !queue.isEmpty()) {
+            final long now = System.currentTimeMillis();
+            if (now >= nextPrune) {
+                received.values().removeIf(remote -> remote.end <= now);
+                nextPrune = now + PRUNE_MILLIS;
+            }
+
+            Update update;
+            try {
+                update = queue.poll(FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (update == null) continue;
+
+            // Later captures of the same player and type replace earlier ones
+            final Map<UUID, Update> batch = new LinkedHashMap<>();
+            while (update != null) {
+                final Update pending = batch.get(update.player);
+                if (pending == null || update.full || update.since != pending.since) {
+                    batch.put(update.player, update);
+                } else {
+                    pending.types.putAll(update.types);
+                }
+                update = queue.poll();
+            }
+
+            try {
+                transport.send(encode(batch.values()));
+            } catch (IOException e) {
+                Logger.error("Failed to sync buffs of " + batch.size() + " players: " + e.getMessage());
+            }
+        }
+    }
+
+    private static byte[] encode(final Collection<Update> batch) throws IOException {
+        final Map<String, Integer> ids = new LinkedHashMap<>();
+        for (final Update update : batch) {
+            for (final Map.Entry<String, List<Timed>> type : update.types.entrySet()) {
+                ids.putIfAbsent(type.getKey(), ids.size());
+                for (final Timed timed : type.getValue()) {
+                    ids.putIfAbsent(timed.buff.getKey(), ids.size());
+                }
+            }
+        }
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream      out   = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeLong(System.currentTimeMillis());
+        BuffPersistence.writeVarInt(out, ids.size());
+        for (final String value : ids.keySet()) {
+            final byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+            BuffPersistence.writeVarInt(out, encoded.length);
+            out.write(encoded);
+        }
+
+        BuffPersistence.writeVarInt(out, batch.size());
+        for (final Update update : batch) {
+            out.writeLong(update.player.getMostSignificantBits());
+            out.writeLong(update.player.getLeastSignificantBits());
+            out.writeLong(update.since);
+            out.writeBoolean(update.full);
+            BuffPersistence.writeVarInt(out, update.types.size());
+            for (final Map.Entry<String, List<Timed>> type : update.types.entrySet()) {
+                final List<Timed> buffs = type.getValue();
+                buffs.sort((a, b) -> Integer.compare(a.ticks, b.ticks));
+                BuffPersistence.writeVarInt(out, ids.get(type.getKey()));
+                BuffPersistence.writeVarInt(out, buffs.size());
+                int previous = 0;
+                for (final Timed timed : buffs) {
+                    BuffPersistence.writeVarInt(out, ids.get(timed.buff.getKey()));
+                    out.writeDouble(timed.buff.getValue());
+                    out.writeBoolean(timed.buff.isPercent());
+                    BuffPersistence.writeVarInt(out, timed.ticks - previous);
+                    previous = timed.ticks;
+                }
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes a message of any server and keeps the buffs it contains
+     *
+     * @param message encoded message
+     */
+    private void receive(final byte[] message) {
+        final ByteBuffer buffer = ByteBuffer.wrap(message);
+        try {
+            if (buffer.getInt() != MAGIC || buffer.get() != VERSION) {
+                Logger.error("Ignoring buff sync message with an unknown format");
+                return;
+            }
+
+            final long     sentAt  = buffer.getLong();
+            final String[] strings = new String[BuffPersistence.readVarInt(buffer)];
+            for (int i = 0; i < strings.length; i++) {
+                final byte[] bytes = new byte[BuffPersistence.readVarInt(buffer)];
+                buffer.get(bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+
+            final int players = BuffPersistence.readVarInt(buffer);
+            for (int i = 0; i < players; i++) {
+                final UUID                  player = new UUID(buffer.getLong(), buffer.getLong());
+                final long                  since  = buffer.getLong();
+                final boolean               full   = buffer.get() != 0;
+                final Map<String, Received> types  = new HashMap<>();
+                final int                   count  = BuffPersistence.readVarInt(buffer);
+                for (int j = 0; j < count; j++) {
+                    final String type  = strings[BuffPersistence.readVarInt(buffer)];
+                    final Buff[] buffs = new Buff[BuffPersistence.readVarInt(buffer)];
+                    final int[]  ticks = new int[buffs.length];
+                    int          total = 0;
+                    for (int k = 0; k < buffs.length; k++) {
+                        final String  key     = strings[BuffPersistence.readVarInt(buffer)];
+                        final double  value   = buffer.getDouble();
+                        final boolean percent = buffer.get() != 0;
+                        total += BuffPersistence.readVarInt(buffer);
+                        buffs[k] = new Buff(key, value, percent);
+                        ticks[k] = total;
+                    }
+                    types.put(type, new Received(buffs, ticks, sentAt));
+                }
+                apply(player, since, full, types);
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            Logger.error("Ignoring malformed buff sync message of " + message.length + " bytes");
+        }
+    }
+
+    private void apply(final UUID player, final long since, final boolean full, final Map<String, Received> types) {
+        received.compute(player, (id, current) -> {
+            // Checked within the update, so a join taking the player over either sees this record or makes it skip
+            if (local.containsKey(player)) return null;
+            // A record of a server the player already left
+            if (current != null && current.since > since) return current;
+
+            final Map<String, Received> result = full || current == null || current.since < since
+                    ? new HashMap<>()
+                    : new HashMap<>(current.types);
+            for (final Map.Entry<String, Received> type : types.entrySet()) {
+                if (type.getValue().buffs.length == 0) {
+                    result.remove(type.getKey());
+                } else {
+                    result.put(type.getKey(), type.getValue());
+                }
+            }
+            return result.isEmpty() ? null : new Remote(since, result);
+        });
+    }
+
+    /**
+     * Buffs of a player captured for sending
+     */
+    private static final class Update {
+        private final UUID                     player;
+        private final long                     since;
+        private final boolean                  full;
+        private final Map<String, List<Timed>> types = new LinkedHashMap<>();
+
+        private Update(final UUID player, final long since, final boolean full) {
+            this.player = player;
+            this.since = since;
+            this.full = full;
+        }
+    }
+
+    private static final class Timed {
+        private final Buff buff;
+        private final int  ticks;
+
+        private Timed(final Buff buff, final int ticks) {
+            this.buff = buff;
+            this.ticks = ticks;
+        }
+    }
+
+    /**
+     * Buffs of a player received from the server that owns the player
+     */
+    private static final class Remote {
+        private final long                  since;
+        private final Map<String, Received> types;
+        private final long                  end;
+
+        private Remote(final long since, final Map<String, Received> types) {
+            this.since = since;
+            this.types = types;
+
+            long last = 0;
+            for (final Received type : types.values()) {
+                for (final int ticks : type.ticks) {
+                    last = Math.max(last, type.sentAt + (long) ticks * MILLIS_PER_TICK);
+                }
+            }
+            this.end = last;
+        }
+    }
+
+    /**
+     * Buffs of one type received from a server
+     */
+    private static final class Received {
+        private final Buff[] buffs;
+        private final int[]  ticks;
+        private final long   sentAt;
+
+        private Received(final Buff[] buffs, final int[] ticks, final long sentAt) {
+            this.buffs = buffs;
+            this.ticks = ticks;
+            this.sentAt = sentAt;
+        }
+    }
+}
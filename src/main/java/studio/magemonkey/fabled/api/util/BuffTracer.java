@@ -0,0 +1,84 @@
+/**
+ * Fabled
+ * studio.magemonkey.fabled.api.util.BuffTracer
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Copyright (c) 2024 MageMonkeyStudio
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software") to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package studio.magemonkey.fabled.api.util;
+
+import org.bukkit.entity.LivingEntity;
+import studio.magemonkey.fabled.log.LogType;
+import studio.magemonkey.fabled.log.Logger;
+
+/**
+ * Receives structured details about buff applications. Tracers are opt-in, either for
+ * every entity through {@link BuffManager#setTracer(BuffTracer)} or for a single one
+ * through {@link BuffManager#trace(LivingEntity, BuffTracer)}. Without a tracer the
+ * scaling path does no logging work at all.
+ */
+public interface BuffTracer {
+    /**
+     * Tracer writing to the BUFF log in the same format the buff subsystem always used
+     */
+    BuffTracer LOGGER = new BuffTracer() {
+        @Override
+        public void onApply(LivingEntity entity,
+                            BuffKey key,
+                            double value,
+                            double multiplier,
+                            double bonus,
+                            double result) {
+            Logger.log(LogType.BUFF, 1, "Scaled value for " + key + " on " + (entity == null ? "removed entity" : entity.getName())
+                    + ": x" + multiplier + ", +" + bonus + ", " + value + " -> " + result);
+        }
+
+        @Override
+        public void onUnscaled(LivingEntity entity, String name, double value) {
+            Logger.log(LogType.BUFF, 1, "No buffs of " + name + " for entity: " + entity.getName()
+                    + ", returning unscaled value " + value);
+        }
+    };
+
+    /**
+     * Called after buffs were applied to a value
+     *
+     * @param entity     entity the buffs belong to, null if it was already removed
+     * @param key        key of the applied buffs
+     * @param value      value before applying buffs
+     * @param multiplier total multiplier applied
+     * @param bonus      total flat bonus applied
+     * @param result     value after applying buffs
+     */
+    void onApply(LivingEntity entity, BuffKey key, double value, double multiplier, double bonus, double result);
+
+    /**
+     * Called when a value is returned unscaled because the entity has no buff
+     * data or the buff type is unknown
+     *
+     * @param entity entity the value was scaled for
+     * @param name   name of the requested buff type
+     * @param value  the unscaled value
+     */
+    default void onUnscaled(LivingEntity entity, String name, double value) {
+    }
+}
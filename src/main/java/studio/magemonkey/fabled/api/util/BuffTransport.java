@@ -0,0 +1,64 @@
+/**
+ * Fabled
+ * studio.magemonkey.fabled.api.util.BuffTransport
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Copyright (c) 2024 MageMonkeyStudio
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software") to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package studio.magemonkey.fabled.api.util;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * Carries buff sync messages between the servers of a network, e.g. over a message
+ * broker or a proxy plugin channel. Every message sent by one server should reach
+ * the receiver of every server, including the sender itself.
+ * <p>
+ * Messages are sent from a single background thread, so implementations may block.
+ * Received messages can be handed to the receiver from any thread.
+ *
+ * @see BuffLoopbackTransport
+ * @see BuffManager#enableSync(BuffTransport)
+ */
+public interface BuffTransport {
+    /**
+     * Sends a message to every server
+     *
+     * @param message encoded message, which must not be modified afterwards
+     * @throws IOException if the message couldn't be sent
+     */
+    void send(byte[] message) throws IOException;
+
+    /**
+     * Sets the receiver of messages sent by any server
+     *
+     * @param receiver receiver of the encoded messages
+     */
+    void setReceiver(Consumer<byte[]> receiver);
+
+    /**
+     * Releases the resources of the transport once sync is disabled
+     */
+    default void close() {
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Fabled
+ * studio.magemonkey.fabled.api.util.BuffTypeIndex
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Copyright (c) 2024 MageMonkeyStudio
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software") to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package studio.magemonkey.fabled.api.util;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reverse index from buff types and {@link Buff} keys to the data holding them, so
+ * server wide queries and dispels only visit the affected entities.
+ * <p>
+ * Data registers itself while holding its own lock whenever a type or buff key
+ * appears or disappears. Sets are added and dropped atomically per key, so a
+ * concurrent registration never ends up in a set that was just dropped.
+ */
+final class BuffTypeIndex {
+    private final Map<BuffKey, Set<BuffData>> types = new ConcurrentHashMap<>();
+    private final Map<String, Set<BuffData>>  buffs = new ConcurrentHashMap<>();
+
+    void addType(final BuffKey type, final BuffData buffData) {
+        add(types, type, buffData);
+    }
+
+    void removeType(final BuffKey type, final BuffData buffData) {
+        remove(types, type, buffData);
+    }
+
+    void addBuff(final String key, final BuffData buffData) {
+        add(buffs, key, buffData);
+    }
+
+    void removeBuff(final String key, final BuffData buffData) {
+        remove(buffs, key, buffData);
+    }
+
+    /**
+     * @param type resolved buff type
+     * @return live read-only view of the data holding buffs of the type
+     */
+    Set<BuffData> withType(final BuffKey type) {
+        return view(types.get(type));
+    }
+
+    /**
+     * @param key key of the buffs
+     * @return live read-only view of the data holding a buff with the key
+     */
+    Set<BuffData> withBuff(final String key) {
+        return view(buffs.get(key));
+    }
+
+    private static <K> void add(final Map<K, Set<BuffData>> map, final K key, final BuffData buffData) {
+        map.compute(key, (k, set) -> {
+            if (set == null) set = ConcurrentHashMap.newKeySet();
+            set.add(buffData);
+            return set;
+        });
+    }
+
+    private static <K> void remove(final Map<K, Set<BuffData>> map, final K key, final BuffData buffData) {
+        map.computeIfPresent(key, (k, set) -> {
+            set.remove(buffData);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    private static Set<BuffData> view(final Set<BuffData> set) {
+        return set == null ? Collections.emptySet() : Collections.unmodifiableSet(set);
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * Fabled
+ * studio.magemonkey.fabled.api.util.BuffAllocationTest
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Copyright (c) 2024 MageMonkeyStudio
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software") to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package studio.magemonkey.fabled.api.util;
+
+import org.bukkit.entity.LivingEntity;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.UUID;
+import java.util.function.DoubleSupplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * Checks that scaling values allocates nothing while tracing is off. Allocations are
+ * measured per thread through the HotSpot {@link com.sun.management.ThreadMXBean}, the
+ * same figure JMH reports with {@code -prof gc}.
+ */
+class BuffAllocationTest {
+    private static final int WARMUP = 50_000;
+    private static final int CALLS  = 100_000;
+
+    // A few bytes of slack for the measurement itself, far below one allocation per call
+    private static final long SLACK = 1024;
+
+    private static final BuffKey DAMAGE = BuffKey.of("alloc_damage");
+    private static final BuffKey FIRE   = BuffKey.of("alloc_damage", "fire");
+
+    private final BuffManager manager = BuffManager.getInstance();
+    private       LivingEntity entity;
+
+    @BeforeEach
+    void setUp() {
+        manager.setManualTicking(true);
+        manager.setTracer(null);
+        entity = SimulatedEntity.create(UUID.randomUUID());
+        final BuffData data = BuffManager.getBuffData(entity);
+        data.addBuff(DAMAGE, new Buff("flat", 2, false), 1_000);
+        data.addBuff(DAMAGE, new Buff("percent", 1.5, true), 1_000);
+        data.addBuff(FIRE, new Buff("fire", 1.2, true), 1_000);
+    }
+
+    @AfterEach
+    void tearDown() {
+        BuffManager.clearData(entity);
+    }
+
+    @Test
+    void scaleByKeyDoesNotAllocate() {
+        assertNoAllocation(() -> manager.scaleValue(FIRE, entity, 10));
+    }
+
+    @Test
+    void scaleByNameDoesNotAllocate() {
+        final String name = FIRE.getName();
+        assertNoAllocation(() -> manager.scaleValue(name, entity, 10));
+    }
+
+    @Test
+    void applyDoesNotAllocate() {
+        final BuffData data = BuffManager.getBuffData(entity);
+        assertNoAllocation(() -> data.apply(FIRE, 10, null));
+    }
+
+    private static void assertNoAllocation(final DoubleSupplier call) {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+
+        final double expected = call.getAsDouble();
+        double       sink     = 0;
+        for (int i = 0; i < WARMUP; i++) {
+            sink += call.getAsDouble();
+        }
+
+        final long thread = Thread.currentThread().getId();
+        final long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < CALLS; i++) {
+            sink += call.getAsDouble();
+        }
+        final long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        assertEquals(expected * (WARMUP + CALLS), sink, 1e-6 * sink);
+        assertTrue(allocated < SLACK, allocated + " bytes allocated over " + CALLS + " calls");
+    }
+}
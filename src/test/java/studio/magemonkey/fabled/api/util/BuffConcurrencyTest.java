@@ -0,0 +1,172 @@
+/**
+ * Fabled
+ * studio.magemonkey.fabled.api.util.BuffConcurrencyTest
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Copyright (c) 2024 MageMonkeyStudio
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software") to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package studio.magemonkey.fabled.api.util;
+
+import org.bukkit.entity.LivingEntity;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Adds buffs from several threads while other threads read snapshots and tick the
+ * expiry wheel, then checks that no buff got lost and that every published snapshot
+ * was consistent with its own totals.
+ */
+class BuffConcurrencyTest {
+    private static final int ENTITIES    = 32;
+    private static final int WRITERS     = 4;
+    private static final int READERS     = 2;
+    private static final int ADDS        = 20_000;
+    private static final int SHORT_TICKS = 3;
+    private static final int LONG_TICKS  = 1_000_000;
+
+    private static final BuffKey LONG  = BuffKey.of("stress_long");
+    private static final BuffKey SHORT = BuffKey.of("stress_short");
+
+    private final BuffManager    manager  = BuffManager.getInstance();
+    private final LivingEntity[] entities = new LivingEntity[ENTITIES];
+
+    @BeforeEach
+    void setUp() {
+        manager.setManualTicking(true);
+        final Random random = new Random(1);
+        for (int i = 0; i < ENTITIES; i++) {
+            entities[i] = SimulatedEntity.create(new UUID(random.nextLong(), i));
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        for (final LivingEntity entity : entities) {
+            BuffManager.clearData(entity);
+        }
+    }
+
+    @Test
+    void concurrentAddsReadsAndTicks() throws Exception {
+        final AtomicIntegerArray expected = new AtomicIntegerArray(ENTITIES);
+        final List<Throwable>    failures = new CopyOnWriteArrayList<>();
+        final AtomicBoolean      done     = new AtomicBoolean();
+        final CountDownLatch     start    = new CountDownLatch(1);
+        final ExecutorService    pool     = Executors.newFixedThreadPool(WRITERS + READERS + 1);
+        final List<Future<?>>    writers  = new ArrayList<>();
+        try {
+            for (int w = 0; w < WRITERS; w++) {
+                final int writer = w;
+                writers.add(pool.submit(() -> {
+                    await(start);
+                    final Random random = new Random(writer);
+                    for (int i = 0; i < ADDS; i++) {
+                        final int      index = random.nextInt(ENTITIES);
+                        final BuffData data  = BuffManager.getBuffData(entities[index]);
+                        if (i % 2 == 0) {
+                            data.addBuff(LONG, new Buff("w" + writer + "-" + i, 1, false), LONG_TICKS);
+                            expected.incrementAndGet(index);
+                        } else {
+                            data.addBuff(SHORT, new Buff("w" + writer + "-" + (i % 64), 1.1, true), SHORT_TICKS);
+                        }
+                    }
+                }));
+            }
+            for (int r = 0; r < READERS; r++) {
+                final int reader = r;
+                pool.submit(() -> {
+                    await(start);
+                    final Random random = new Random(-reader - 1);
+                    final int[]  seen   = new int[ENTITIES];
+                    try {
+                        while (!done.get()) {
+                            final int          index    = random.nextInt(ENTITIES);
+                            final BuffSnapshot snapshot = BuffManager.snapshot(entities[index]);
+                            final int          count    = snapshot.getBuffs(LONG).size();
+                            assertEquals(count, snapshot.getFlatBonus(LONG), 0, "torn snapshot");
+                            assertTrue(count >= seen[index], "snapshot went back in time");
+                            seen[index] = count;
+                        }
+                    } catch (final Throwable t) {
+                        failures.add(t);
+                    }
+                });
+            }
+            pool.submit(() -> {
+                await(start);
+                try {
+                    while (!done.get()) {
+                        manager.tick();
+                    }
+                } catch (final Throwable t) {
+                    failures.add(t);
+                }
+            });
+
+            start.countDown();
+            for (final Future<?> writer : writers) {
+                writer.get(1, TimeUnit.MINUTES);
+            }
+        } finally {
+            done.set(true);
+            pool.shutdown();
+            assertTrue(pool.awaitTermination(1, TimeUnit.MINUTES));
+        }
+
+        assertTrue(failures.isEmpty(), () -> "failures: " + failures);
+        for (int i = 0; i <= SHORT_TICKS; i++) {
+            manager.tick();
+        }
+        for (int i = 0; i < ENTITIES; i++) {
+            final BuffSnapshot snapshot = BuffManager.snapshot(entities[i]);
+            assertEquals(expected.get(i), snapshot.getBuffs(LONG).size(), "lost buffs");
+            assertEquals(expected.get(i), snapshot.getFlatBonus(LONG), 0);
+            assertTrue(snapshot.getBuffs(SHORT).isEmpty(), "buffs outlived their duration");
+            assertEquals(1, snapshot.getMultiplier(SHORT), 0);
+        }
+    }
+
+    private static void await(final CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
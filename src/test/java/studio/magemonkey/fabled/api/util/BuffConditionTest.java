@@ -0,0 +1,75 @@
+/**
+ * Fabled
+ * studio.magemonkey.fabled.api.util.BuffConditionTest
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Copyright (c) 2024 MageMonkeyStudio
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software") to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package studio.magemonkey.fabled.api.util;
+
+import org.bukkit.Material;
+import org.bukkit.entity.Player;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.inventory.PlayerInventory;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests compiling and testing buff conditions against stub players
+ */
+class BuffConditionTest {
+    @Test
+    void weaponMatchesWholeNameParts() {
+        final BuffCondition axe = BuffCondition.compile("weapon:axe");
+        assertTrue(axe.test(holding(Material.DIAMOND_AXE)));
+        assertFalse(axe.test(holding(Material.DIAMOND_PICKAXE)));
+
+        final BuffCondition sword = BuffCondition.compile("weapon:sword");
+        assertTrue(sword.test(holding(Material.IRON_SWORD)));
+        assertFalse(sword.test(holding(Material.DIAMOND_PICKAXE)));
+    }
+
+    @Test
+    void weaponMatchesFullName() {
+        assertTrue(BuffCondition.compile("weapon:bow").test(holding(Material.BOW)));
+        assertFalse(BuffCondition.compile("weapon:bow").test(null));
+    }
+
+    /**
+     * @param material material of the item in the main hand
+     * @return a stub player holding an item of the material
+     */
+    private static Player holding(final Material material) {
+        final ItemStack item = new ItemStack(material);
+        final PlayerInventory inventory = (PlayerInventory) Proxy.newProxyInstance(
+                PlayerInventory.class.getClassLoader(),
+                new Class<?>[]{PlayerInventory.class},
+                (proxy, method, args) -> "getItemInMainHand".equals(method.getName()) ? item : null);
+        return (Player) Proxy.newProxyInstance(Player.class.getClassLoader(),
+                new Class<?>[]{Player.class},
+                (proxy, method, args) -> "getInventory".equals(method.getName()) ? inventory : null);
+    }
+}
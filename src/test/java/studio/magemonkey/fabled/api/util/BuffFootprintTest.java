@@ -0,0 +1,231 @@
+/**
+ * Fabled
+ * studio.magemonkey.fabled.api.util.BuffFootprintTest
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Copyright (c) 2024 MageMonkeyStudio
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software") to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package studio.magemonkey.fabled.api.util;
+
+import org.bukkit.entity.LivingEntity;
+import org.bukkit.scheduler.BukkitRunnable;
+import org.junit.jupiter.api.Test;
+import org.openjdk.jol.info.GraphLayout;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Measures the heap cost per buffed entity with JOL, comparing everything the manager
+ * keeps per entity against the layout it replaced. On the current side this covers the
+ * data, its store, the published snapshot, the expiry wheel node, the weak entity
+ * reference and the index and type-index entries. On the old side it covers the nested
+ * maps, the map entry per entity and the scheduled task every buff had. Entities, buffs
+ * and type keys are left out of both, they are shared or owned by the caller.
+ * <p>
+ * Below a handful of buffs the snapshot and indexes outweigh the smaller store, so the
+ * cost only drops once entities carry several buffs and their tasks add up.
+ */
+class BuffFootprintTest {
+    private static final int ENTITIES = 1_000;
+
+    @Test
+    void oneBuff() {
+        assertRatio(1, 1.3);
+    }
+
+    @Test
+    void twoBuffs() {
+        assertRatio(2, 1.0);
+    }
+
+    @Test
+    void eightBuffs() {
+        assertRatio(8, 0.7);
+    }
+
+    @Test
+    void snapshotSharesStoredBuffs() {
+        final BuffKey      type   = BuffKey.of("footprint_shared");
+        final LivingEntity entity = SimulatedEntity.create(UUID.randomUUID());
+        final Buff         buff   = new Buff("shared", 1.5, true);
+        try {
+            BuffManager.getInstance().setManualTicking(true);
+            final BuffData data = BuffManager.getBuffData(entity);
+            data.addBuff(type, buff, 100);
+            assertSame(buff, data.getSnapshot().getBuffs(type).get(0));
+        } finally {
+            BuffManager.clearData(entity);
+        }
+    }
+
+    /**
+     * @param count    buffs per entity, spread over two types
+     * @param maxRatio highest allowed cost of the current layout relative to the old one
+     */
+    private static void assertRatio(final int count, final double maxRatio) {
+        // Fresh types and keys, so none of them are reachable from the manager beforehand
+        final BuffKey[] types = {BuffKey.of("footprint" + count + "_a"), BuffKey.of("footprint" + count + "_b")};
+        final Buff[]    buffs = new Buff[count];
+        for (int i = 0; i < count; i++) {
+            buffs[i] = new Buff("footprint" + count + "_" + i, 1.5, i % 2 == 0);
+        }
+        final LivingEntity[] entities = new LivingEntity[ENTITIES];
+        for (int i = 0; i < ENTITIES; i++) {
+            entities[i] = SimulatedEntity.create(UUID.randomUUID());
+        }
+
+        final List<Object> shared = new ArrayList<>();
+        shared.addAll(Arrays.asList(types));
+        shared.addAll(Arrays.asList(buffs));
+        shared.addAll(Arrays.asList(entities));
+        final long sharedSize = GraphLayout.parseInstance(shared.toArray()).totalSize();
+
+        final long current  = currentCost(types, buffs, entities) - sharedSize;
+        final long baseline = baselineCost(types, buffs, entities) - sharedSize;
+        final double ratio = (double) current / baseline;
+        assertTrue(ratio <= maxRatio, String.format("%d buffs: %d bytes per entity against %d before, ratio %.2f",
+                count, current / ENTITIES, baseline / ENTITIES, ratio));
+    }
+
+    private static long currentCost(final BuffKey[] types, final Buff[] buffs, final LivingEntity[] entities) {
+        final BuffManager manager = BuffManager.getInstance();
+        manager.setManualTicking(true);
+        manager.tick();
+        final long before = GraphLayout.parseInstance(manager).totalSize();
+        try {
+            for (final LivingEntity entity : entities) {
+                final BuffData data = BuffManager.getBuffData(entity);
+                for (int i = 0; i < buffs.length; i++) {
+                    data.addBuff(types[i % 2], buffs[i], 1_000);
+                }
+            }
+            // Drains the queue of data waiting to be located
+            manager.tick();
+            return GraphLayout.parseInstance(manager).totalSize() - before;
+        } finally {
+            for (final LivingEntity entity : entities) {
+                BuffManager.clearData(entity);
+            }
+        }
+    }
+
+    private static long baselineCost(final BuffKey[] types, final Buff[] buffs, final LivingEntity[] entities) {
+        final Baseline baseline = new Baseline();
+        final long     before   = GraphLayout.parseInstance(baseline).totalSize();
+        for (final LivingEntity entity : entities) {
+            final BaselineData data = new BaselineData(entity);
+            baseline.data.put(entity.getUniqueId(), data);
+            for (int i = 0; i < buffs.length; i++) {
+                final String type = types[i % 2].getName();
+                data.buffs.computeIfAbsent(type, t -> new HashMap<>()).put(buffs[i].getKey(), buffs[i]);
+                baseline.schedule(new BaselineTask(data, type, buffs[i].getKey()));
+            }
+        }
+        return GraphLayout.parseInstance(baseline).totalSize() - before;
+    }
+
+    /**
+     * What the manager and the server scheduler held for buffs before
+     */
+    private static final class Baseline {
+        private final Map<UUID, BaselineData>     data    = new HashMap<>();
+        private final Map<Integer, ScheduledTask> runners = new ConcurrentHashMap<>();
+        private final PriorityQueue<ScheduledTask> pending =
+                new PriorityQueue<>(Comparator.comparingLong(task -> task.nextRun));
+        private       int                         nextId  = 1_000;
+
+        private void schedule(final BukkitRunnable runnable) {
+            final ScheduledTask task = new ScheduledTask(runnable, nextId++);
+            runners.put(task.id, task);
+            pending.add(task);
+        }
+    }
+
+    /**
+     * Buff data as it was, one map per type inside a map per entity
+     */
+    private static final class BaselineData {
+        private final Map<String, Map<String, Buff>> buffs = new HashMap<>();
+        private final LivingEntity                   entity;
+
+        private BaselineData(final LivingEntity entity) {
+            this.entity = entity;
+        }
+    }
+
+    /**
+     * The task that used to remove each buff when it ran out
+     */
+    private static final class BaselineTask extends BukkitRunnable {
+        private final BaselineData owner;
+        private final String       type;
+        private final String       key;
+
+        private BaselineTask(final BaselineData owner, final String type, final String key) {
+            this.owner = owner;
+            this.type = type;
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            owner.buffs.get(type).remove(key);
+        }
+    }
+
+    /**
+     * Stand-in for the server's CraftTask, with the fields it keeps per scheduled task
+     */
+    private static final class ScheduledTask {
+        private volatile ScheduledTask next;
+        private final    Runnable      task;
+        private final    Object        consumer;
+        private final    Object        plugin;
+        private final    Object        timings;
+        private final    int           id;
+        private final    long          createdAt;
+        private          long          period;
+        private          long          nextRun;
+
+        private ScheduledTask(final Runnable task, final int id) {
+            this.task = task;
+            this.consumer = null;
+            this.plugin = null;
+            this.timings = null;
+            this.id = id;
+            this.createdAt = System.nanoTime();
+            this.period = -1;
+            this.nextRun = id;
+        }
+    }
+}
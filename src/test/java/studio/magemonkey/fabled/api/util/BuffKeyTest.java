@@ -0,0 +1,60 @@
+/**
+ * Fabled
+ * studio.magemonkey.fabled.api.util.BuffKeyTest
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Copyright (c) 2024 MageMonkeyStudio
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software") to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package studio.magemonkey.fabled.api.util;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+/**
+ * Tests which keys are linked to a parent
+ */
+class BuffKeyTest {
+    @Test
+    void fullNamesDontInherit() {
+        BuffKey.of("keytest");
+        assertNull(BuffKey.of("keytest_bonus").getParent());
+        assertNull(BuffKey.of("keytest.nested").getParent());
+    }
+
+    @Test
+    void categoriesInherit() {
+        final BuffKey type = BuffKey.of("keycat");
+        final BuffKey fire = BuffKey.of("keycat", "fire.aoe");
+        assertSame(type, fire.getParent().getParent());
+        assertSame(fire, BuffKey.find("keycat_fire.aoe"));
+    }
+
+    @Test
+    void fullNameIsLinkedOnceLookedUpByCategory() {
+        final BuffKey key = BuffKey.of("keylink_ice");
+        assertNull(key.getParent());
+        assertSame(key, BuffKey.of("keylink", "ice"));
+        assertSame(BuffKey.of("keylink"), key.getParent());
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Fabled
+ * studio.magemonkey.fabled.api.util.BuffPartitionsTest
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Copyright (c) 2024 MageMonkeyStudio
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software") to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package studio.magemonkey.fabled.api.util;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.LivingEntity;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Moves buffed entities between regions and checks that unloading a region only
+ * drops the buffs of entities that are really in it
+ */
+class BuffPartitionsTest {
+    private static final BuffKey DAMAGE = BuffKey.of("partition_damage");
+    private static final int     FAR    = BuffPartitions.REGION_SIZE * 4;
+
+    private final BuffManager     manager = BuffManager.getInstance();
+    private final World           world   = SimulatedEntity.world(UUID.randomUUID());
+    private       SimulatedEntity entity;
+
+    @BeforeEach
+    void setUp() {
+        manager.setManualTicking(true);
+        entity = new SimulatedEntity(UUID.randomUUID());
+        entity.setLocation(new Location(world, 10, 64, 10));
+        BuffManager.getBuffData(entity.getProxy()).addBuff(DAMAGE, new Buff("buff", 2, false), 1_000);
+        manager.tick();
+    }
+
+    @AfterEach
+    void tearDown() {
+        BuffManager.clearData(entity.getProxy());
+    }
+
+    @Test
+    void unloadingTheOldRegionKeepsBuffsOfEntitiesThatWalkedAway() {
+        final LivingEntity proxy = entity.getProxy();
+        assertTrue(manager.getDataInArea(world, 0, 0, 20, 20).contains(BuffManager.peek(proxy)));
+
+        entity.setLocation(new Location(world, FAR, 64, FAR));
+        manager.unloadRegion(world, 10, 10);
+
+        assertTrue(BuffManager.snapshot(proxy).isActive(DAMAGE), "buffs of an entity outside the region were dropped");
+        assertTrue(manager.getDataInArea(world, FAR, FAR, FAR, FAR).contains(BuffManager.peek(proxy)));
+        assertTrue(manager.getDataInArea(world, 0, 0, 20, 20).isEmpty());
+    }
+
+    @Test
+    void teleportingMovesTheDataRightAway() {
+        final LivingEntity proxy = entity.getProxy();
+        final Location     to    = new Location(world, FAR, 64, FAR);
+        manager.relocate(proxy, to);
+        entity.setLocation(to);
+
+        assertTrue(manager.getDataInArea(world, 0, 0, 20, 20).isEmpty());
+        assertTrue(manager.getDataInArea(world, FAR, FAR, FAR, FAR).contains(BuffManager.peek(proxy)));
+    }
+
+    @Test
+    void unloadingTheRegionDropsBuffsOfEntitiesStillInIt() {
+        final LivingEntity proxy = entity.getProxy();
+        manager.unloadRegion(world, 10, 10);
+
+        assertFalse(BuffManager.snapshot(proxy).isActive(DAMAGE));
+        assertTrue(manager.getDataInArea(world, 0, 0, 20, 20).isEmpty());
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * Fabled
+ * studio.magemonkey.fabled.api.util.SimulatedEntity
+ * <p>
+ * The MIT License (MIT)
+ * <p>
+ * Copyright (c) 2024 MageMonkeyStudio
+ * <p>
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software") to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * <p>
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ * <p>
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package studio.magemonkey.fabled.api.util;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.LivingEntity;
+
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.UUID;
+
+/**
+ * Stub entity for tests and benchmarks. It is backed by a proxy answering the few
+ * methods the buff subsystem uses, so it runs on a plain JVM with only the Bukkit
+ * API on the classpath.
+ */
+final class SimulatedEntity {
+    private final    UUID         id;
+    private final    LivingEntity proxy;
+    private volatile boolean      dead;
+    private volatile Location     location = new Location(null, 0, 64, 0);
+
+    /**
+     * @param id unique id of the entity
+     */
+    SimulatedEntity(final UUID id) {
+        this.id = id;
+        this.proxy = (LivingEntity) Proxy.newProxyInstance(LivingEntity.class.getClassLoader(),
+                new Class<?>[]{LivingEntity.class},
+                (proxy, method, args) -> invoke(proxy, method.getName(), method.getReturnType(), args));
+    }
+
+    /**
+     * @param id unique id of the entity
+     * @return the proxy of a new stub entity
+     */
+    static LivingEntity create(final UUID id) {
+        return new SimulatedEntity(id).getProxy();
+    }
+
+    /**
+     * @return the proxy entity
+     */
+    LivingEntity getProxy() {
+        return proxy;
+    }
+
+    /**
+     * Moves the entity without calling any event, like walking does
+     *
+     * @param location new location of the entity
+     */
+    void setLocation(final Location location) {
+        this.location = location;
+    }
+
+    /**
+     * Creates a stub world answering its UID and reporting no loaded chunks or entities
+     *
+     * @param id unique id of the world
+     * @return the proxy world
+     */
+    static World world(final UUID id) {
+        return (World) Proxy.newProxyInstance(World.class.getClassLoader(),
+                new Class<?>[]{World.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getUID":
+                            return id;
+                        case "getName":
+                            return "sim-world-" + id;
+                        case "getLivingEntities":
+                        case "getEntities":
+                            return Collections.emptyList();
+                        case "hashCode":
+                            return id.hashCode();
+                        case "equals":
+                            return proxy == args[0];
+                        case "toString":
+                            return "SimulatedWorld{" + id + "}";
+                        default:
+                            return defaultValue(method.getReturnType());
+                    }
+                });
+    }
+
+    /**
+     * Marks the entity as dead, so it reports being dead and is no longer valid from then on
+     */
+    void kill() {
+        dead = true;
+    }
+
+    private Object invoke(final Object proxy, final String method, final Class<?> type, final Object[] args) {
+        switch (method) {
+            case "getUniqueId":
+                return id;
+            case "getName":
+                return "sim-" + id;
+            case "isDead":
+                return dead;
+            case "isValid":
+                return !dead;
+            case "getLocation":
+                return location.clone();
+            case "hashCode":
+                return id.hashCode();
+            case "equals":
+                return proxy == args[0];
+            case "toString":
+                return "SimulatedEntity{" + id + "}";
+            default:
+                return defaultValue(type);
+        }
+    }
+
+    private static Object defaultValue(final Class<?> type) {
+        if (!type.isPrimitive() || type == void.class) return null;
+        if (type == boolean.class) return false;
+        if (type == char.class) return '\0';
+        if (type == double.class) return 0.0;
+        if (type == float.class) return 0f;
+        if (type == long.class) return 0L;
+        if (type == int.class) return 0;
+        if (type == short.class) return (short) 0;
+        return (byte) 0;
+    }
+}